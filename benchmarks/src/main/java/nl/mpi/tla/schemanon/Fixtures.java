@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Access to the bundled benchmark fixtures.
+ *
+ * A fixture document contains a few records, a larger document is generated
+ * by repeating these records (with unique ids) until the requested number
+ * of records is reached.
+ */
+final class Fixtures {
+
+    private static final Pattern RECORD = Pattern.compile("<record[ >].*?</record>", Pattern.DOTALL);
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param name The name of the schema fixture
+     * @return The URL of the schema
+     */
+    static URL schema(String name) {
+        URL url = Fixtures.class.getResource("/fixtures/" + name);
+        if (url == null)
+            throw new IllegalArgumentException("Unknown schema fixture[" + name + "]!");
+        return url;
+    }
+
+    /**
+     * Generate a document with (at least) the requested number of records.
+     *
+     * @param name The name of the document fixture
+     * @param records The number of records
+     * @return A temporary file, which should be deleted by the caller
+     * @throws IOException
+     */
+    static File document(String name, int records) throws IOException {
+        String xml = read("/fixtures/" + name + ".xml");
+        Matcher m = RECORD.matcher(xml);
+        int start = -1;
+        int end = -1;
+        List<String> recs = new ArrayList<String>();
+        while (m.find()) {
+            if (start < 0)
+                start = m.start();
+            end = m.end();
+            recs.add(m.group());
+        }
+        if (recs.isEmpty())
+            throw new IllegalArgumentException("Document fixture[" + name + "] contains no records!");
+        StringBuilder body = new StringBuilder();
+        for (int r = 0; r < records; r++) {
+            String rec = recs.get(r % recs.size());
+            // keep the xs:ID values unique
+            body.append(rec.replaceFirst(" id=\"([^\"]*)\"", " id=\"$1-" + r + "\"")).append('\n');
+        }
+        File doc = File.createTempFile("schemanon-" + name + "-" + records + "-", ".xml");
+        Files.write(doc.toPath(), (xml.substring(0, start) + body + xml.substring(end)).getBytes(StandardCharsets.UTF_8));
+        return doc;
+    }
+
+    static String read(String resource) throws IOException {
+        try (InputStream in = Fixtures.class.getResourceAsStream(resource)) {
+            if (in == null)
+                throw new IllegalArgumentException("Unknown fixture[" + resource + "]!");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) > 0;)
+                out.write(buffer, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
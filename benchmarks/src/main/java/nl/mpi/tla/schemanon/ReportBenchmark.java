@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.SAXParserFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of turning a Schematron SVRL report into messages, and of
+ * keeping the report in memory, for a heavily invalid document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+    @Param({"30", "3000"})
+    public int records;
+
+    private SchemAnonValidator validator;
+
+    private File input;
+
+    private byte[] report;
+
+    private SAXParserFactory parsers;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        validator = new SchemAnon(Fixtures.schema("records-rules.xsd")).getValidator();
+        input = Fixtures.document("invalid-rules", records);
+        report = validator.withReport(true).validate(input).getReport().toString().getBytes(StandardCharsets.UTF_8);
+        parsers = SAXParserFactory.newInstance();
+        parsers.setNamespaceAware(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+    }
+
+    @Benchmark
+    public List<Message> extract() throws Exception {
+        List<Message> msgList = new ArrayList<Message>();
+        parsers.newSAXParser().parse(new ByteArrayInputStream(report), new SVRLHandler(msgList));
+        return msgList;
+    }
+
+    @Benchmark
+    public ValidationResult validateWithReport() {
+        return validator.withReport(true).validate(input);
+    }
+
+    @Benchmark
+    public ValidationResult validateWithoutReport() {
+        return validator.withReport(false).validate(input);
+    }
+}
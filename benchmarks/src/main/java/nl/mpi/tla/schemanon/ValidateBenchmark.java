@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-document cost of validation, i.e., validateXSD(),
+ * validateSchematron() and the extraction of the messages, for small and
+ * large, valid and heavily invalid documents.
+ *
+ * Run with {@code -prof gc} to also measure the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidateBenchmark {
+
+    @Param({"records.xsd", "records-rules.xsd"})
+    public String schema;
+
+    @Param({"valid", "invalid-rules", "invalid-xsd"})
+    public String document;
+
+    @Param({"3", "3000"})
+    public int records;
+
+    @Param({"false", "true"})
+    public boolean singlePass;
+
+    private SchemAnonValidator validator;
+
+    private File input;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        validator = new SchemAnon(Fixtures.schema(schema)).getValidator().withSinglePass(singlePass).withReport(false);
+        input = Fixtures.document(document, records);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.delete();
+    }
+
+    @Benchmark
+    public ValidationResult validate() {
+        return validator.validate(input);
+    }
+}
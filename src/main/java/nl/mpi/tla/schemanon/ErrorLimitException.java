@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.util.List;
+import org.xml.sax.SAXException;
+
+/**
+ * Thrown to abort parsing, validation or the Schematron transformation
+ * when the maximum number of errors has been reached.
+ */
+public class ErrorLimitException extends SAXException {
+
+    /**
+     * The maximum number of errors
+     */
+    private final int maxErrors;
+
+    public ErrorLimitException(int maxErrors) {
+        super("Validation stopped after reaching the maximum of "+maxErrors+" error(s).");
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * @return the maximum number of errors
+     */
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * Add a warning to the list of messages that the validation was stopped.
+     *
+     * @param msgList The list of messages
+     */
+    void addMessage(List<Message> msgList) {
+        msgList.add(new Message(false, null, null, null, getMessage()));
+    }
+
+    /**
+     * Find an ErrorLimitException in the chain of causes of an exception.
+     *
+     * @param ex The exception
+     * @return The ErrorLimitException, or null if the exception wasn't caused by one
+     */
+    static ErrorLimitException find(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ErrorLimitException)
+                return (ErrorLimitException)cause;
+            if (cause instanceof SAXException && ((SAXException)cause).getException() != null && ((SAXException)cause).getException() != cause.getCause()) {
+                ErrorLimitException limit = find(((SAXException)cause).getException());
+                if (limit != null)
+                    return limit;
+            }
+        }
+        return null;
+    }
+}
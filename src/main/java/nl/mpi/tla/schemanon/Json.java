@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.util.List;
+
+/**
+ * Minimal JSON serialization of validation results.
+ */
+final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * Append a JSON string, or null.
+     */
+    static StringBuilder string(StringBuilder json, String s) {
+        if (s == null)
+            return json.append("null");
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                        json.append(String.format("\\u%04x", (int)c));
+                    else
+                        json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Append a message as a JSON object.
+     */
+    static StringBuilder message(StringBuilder json, Message msg) {
+        json.append("{\"error\":").append(msg.isError());
+        json.append(",\"context\":");
+        string(json, msg.getContext());
+        json.append(",\"test\":");
+        string(json, msg.getTest());
+        json.append(",\"location\":");
+        string(json, msg.getLocation());
+        json.append(",\"text\":");
+        string(json, msg.getText());
+        return json.append('}');
+    }
+
+    /**
+     * Append the validity and the messages of a validation as JSON members.
+     */
+    static StringBuilder result(StringBuilder json, boolean valid, List<Message> msgs) {
+        json.append("\"valid\":").append(valid);
+        json.append(",\"messages\":[");
+        boolean first = true;
+        for (Message msg : msgs) {
+            if (!first)
+                json.append(',');
+            message(json, msg);
+            first = false;
+        }
+        return json.append(']');
+    }
+}
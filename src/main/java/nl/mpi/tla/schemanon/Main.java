@@ -17,19 +17,46 @@
 package nl.mpi.tla.schemanon;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.xml.transform.stream.StreamSource;
 import org.apache.commons.io.FileUtils;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
 import org.apache.commons.io.comparator.SizeFileComparator;
 
 
@@ -37,23 +64,48 @@ import org.apache.commons.io.comparator.SizeFileComparator;
  * @author Menzo Windhouwer
  */
 public class Main {
-    
+
+    /**
+     * The number of inputs per worker thread that may be validated ahead of the one being printed.
+     */
+    private static final int WINDOW = 4;
+
+    /**
+     * The default port of the validation server.
+     */
+    private static final int PORT = 8080;
+
+    /**
+     * The output stage, which saves the SVRL reports in the background (might be null).
+     */
+    private static volatile Output output = null;
+
     public static int validate(SchemAnon tron, File input, boolean svrl, boolean quiet) {
+        return validate(tron, input, svrl, quiet, System.out);
+    }
+
+    private static int validate(SchemAnon tron, ResultCache results, File input, boolean svrl, boolean quiet) {
+        if (results == null)
+            return validate(tron, input, svrl, quiet);
+        try {
+            return validate(tron.getValidator(), results, input, svrl, quiet, System.out);
+        } catch (SchemAnonException | IOException ex) {
+            System.err.println("FATAL: validating file["+input+"]: "+ex);
+            ex.printStackTrace(System.err);
+            return 0;
+        }
+    }
+
+    public static int validate(SchemAnon tron, File input, boolean svrl, boolean quiet, PrintStream out) {
         int code = 0;
         try {
             if (!tron.validate(input))
                 code = 1;
-            if (!quiet) {
-                for (Message msg : tron.getMessages()) {
-                    System.out.println("SchemAnon["+input+"]: "+(code==0?"VALID":"INVALID!"));
-                    System.out.println("" + (msg.isError() ? "ERROR" : "WARNING") + (msg.getLocation() != null ? " at " + msg.getLocation() : ""));
-                    System.out.println("  " + msg.getText());
-                }
-                System.out.println();
-            }
-            if (svrl) {
+            if (!quiet)
+                print(input, code, tron.getMessages(), out);
+            if (svrl && tron.getReport() != null) {
                 File output = new File(input.getPath()+".svrl");
-                SaxonUtils.save(tron.getReport().asSource(),output);
+                save(tron.getReport(),output);
             }
         } catch (SaxonApiException | SchemAnonException | IOException ex) {
             System.err.println("FATAL: validating file["+input+"]: "+ex);
@@ -62,14 +114,451 @@ public class Main {
         return code;
     }
 
+    public static int validate(SchemAnonValidator validator, File input, boolean svrl, boolean quiet, PrintStream out) {
+        return validate(validator, null, input, svrl, quiet, out);
+    }
+
+    public static int validate(SchemAnonValidator validator, ResultCache results, File input, boolean svrl, boolean quiet, PrintStream out) {
+        return report(input, validate(validator, results, input), svrl, quiet, out);
+    }
+
+    private static int report(File input, ValidationResult result, boolean svrl, boolean quiet, PrintStream out) {
+        int code = 0;
+        try {
+            if (!result.isValid())
+                code = 1;
+            if (!quiet)
+                print(input, code, result.getMessages(), out);
+            if (svrl && result.getReport() != null) {
+                File output = new File(input.getPath()+".svrl");
+                save(result.getReport(),output);
+            }
+        } catch (SaxonApiException ex) {
+            System.err.println("FATAL: validating file["+input+"]: "+ex);
+            ex.printStackTrace(System.err);
+        }
+        return code;
+    }
+
+    /**
+     * Validate the input, unless the result cache already contains the result
+     * for its content.
+     */
+    private static ValidationResult validate(SchemAnonValidator validator, ResultCache results, File input) {
+        if (results == null)
+            return validator.validate(input);
+        String hash = null;
+        try {
+            hash = ResultCache.hash(input);
+        } catch (IOException ex) {
+            // let the validator report the unreadable input
+            return validator.validate(input);
+        }
+        String systemId = input.toURI().toASCIIString();
+        ValidationResult result = results.get(hash, systemId);
+        if (result == null) {
+            result = validator.validate(input);
+            // a failed validation might succeed next time
+            if (!result.isComplete())
+                return result;
+            try {
+                results.put(hash, systemId, result);
+            } catch (IOException ex) {
+                System.err.println("!WRN: couldn't cache the result for file["+input+"]: "+ex);
+            }
+        }
+        return result;
+    }
+
+    private static void save(XdmNode report, File file) throws SaxonApiException {
+        Output stage = output;
+        if (stage != null)
+            stage.save(report, file);
+        else
+            SaxonUtils.save(report.asSource(), file);
+    }
+
+    private static void print(File input, int code, List<Message> msgs, PrintStream out) {
+        for (Message msg : msgs) {
+            out.println("SchemAnon["+input+"]: "+(code==0?"VALID":"INVALID!"));
+            out.println("" + (msg.isError() ? "ERROR" : "WARNING") + (msg.getLocation() != null ? " at " + msg.getLocation() : ""));
+            out.println("  " + msg.getText());
+        }
+        out.println();
+    }
+
+    /**
+     * Validate the inputs using a pool of worker threads, which all share the
+     * same compiled schema. The output is printed in the order of the inputs.
+     */
+    private static int validate(final SchemAnonValidator validator, final ResultCache results, Collection<File> inputs, final boolean svrl, final boolean quiet, boolean iter, int threads) {
+        int code = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // only allow a limited number of inputs ahead of the one being printed
+        Deque<Future<Result>> window = new ArrayDeque<Future<Result>>();
+        int i = 0;
+        try {
+            for (final File input:inputs) {
+                window.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        PrintStream out = new PrintStream(buffer,false,"UTF-8");
+                        int code = validate(validator,results,input,svrl,quiet,out);
+                        out.close();
+                        return new Result(input,code,buffer);
+                    }
+                }));
+                while (window.size() >= threads*WINDOW) {
+                    code = print(window.remove(),++i,inputs.size(),quiet,iter)>0?1:code;
+                }
+            }
+            while (!window.isEmpty()) {
+                code = print(window.remove(),++i,inputs.size(),quiet,iter)>0?1:code;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return code;
+    }
+
+    private static int print(Future<Result> future, int i, int size, boolean quiet, boolean iter) {
+        Result res = null;
+        try {
+            res = future.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.println("FATAL: validating file: "+ex);
+            ex.printStackTrace(System.err);
+            return 1;
+        }
+        if (iter) {
+            System.err.print("INF: ["+i+"/"+size+"]"+res.input+" ("+res.input.length()+" bytes)");
+            if (!quiet)
+                System.err.println();
+        }
+        try {
+            res.output.writeTo(System.out);
+            // keep the results next to the progress info
+            if (iter)
+                System.out.flush();
+        } catch (IOException ex) {
+            System.err.println("FATAL: writing output for file["+res.input+"]: "+ex);
+        }
+        if (iter && quiet)
+            System.err.println(">> "+(res.code>0?"INVALID":"VALID"));
+        return res.code;
+    }
+
+    /**
+     * The outcome, and the buffered output, of validating a single input in a worker thread.
+     */
+    private static class Result {
+        final File input;
+        final int code;
+        final ByteArrayOutputStream output;
+
+        Result(File input, int code, ByteArrayOutputStream output) {
+            this.input = input;
+            this.code = code;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Validate a continuous batch of inputs, one path or single-line inline
+     * document per line, using a pool of worker threads. For each input a
+     * JSON line is printed as soon as its validation is done, so the records
+     * might be out of order; the id of a record is the sequence number of its
+     * input.
+     */
+    private static int batch(final SchemAnonValidator validator, final ResultCache results, BufferedReader in, final boolean svrl, final boolean quiet, int threads) throws IOException, InterruptedException {
+        final AtomicBoolean invalid = new AtomicBoolean(false);
+        // only allow a limited number of inputs to wait for a worker
+        final Semaphore window = new Semaphore(threads*WINDOW);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            long id = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                final long n = ++id;
+                final String input = line;
+                window.acquire();
+                try {
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                StringBuilder json = new StringBuilder();
+                                if (!record(validator,results,n,input,svrl,quiet,json))
+                                    invalid.set(true);
+                                synchronized (System.out) {
+                                    System.out.println(json);
+                                    System.out.flush();
+                                }
+                            } finally {
+                                window.release();
+                            }
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    window.release();
+                    throw ex;
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return (invalid.get()?1:0);
+    }
+
+    private static boolean record(SchemAnonValidator validator, ResultCache results, long id, String input, boolean svrl, boolean quiet, StringBuilder json) {
+        boolean inline = input.startsWith("<");
+        json.append("{\"id\":").append(id).append(",\"input\":");
+        Json.string(json, inline?null:input);
+        try {
+            ValidationResult result = null;
+            if (inline)
+                // the inline document can only be read once
+                result = validator.withSinglePass(true).validate(new StreamSource(new StringReader(input)));
+            else
+                result = validate(validator,results,new File(input));
+            json.append(',');
+            Json.result(json, result.isValid(), quiet?new ArrayList<Message>():result.getMessages());
+            if (svrl && !inline && result.getReport() != null) {
+                File output = new File(input+".svrl");
+                save(result.getReport(),output);
+            }
+            json.append('}');
+            return result.isValid();
+        } catch (SaxonApiException | RuntimeException ex) {
+            System.err.println("FATAL: validating input["+id+"]: "+ex);
+            json.setLength(0);
+            json.append("{\"id\":").append(id).append(",\"input\":");
+            Json.string(json, inline?null:input);
+            json.append(",\"error\":");
+            Json.string(json, ex.toString());
+            json.append('}');
+            return false;
+        }
+    }
+
+    /**
+     * Validate the inputs in a directory incrementally, i.e., inputs that
+     * didn't change according to the manifest aren't validated again. The
+     * directory walk is streamed into a pool of worker threads, and the output
+     * is printed in the order the inputs are done.
+     */
+    private static int incremental(final SchemAnonValidator validator, final ResultCache results, final Manifest manifest, File dir, List<String> extensions, final boolean svrl, final boolean quiet, final boolean iter, int threads) throws IOException, InterruptedException {
+        final Path root = dir.toPath();
+        final List<String> suffixes = new ArrayList<String>();
+        for (String ext : extensions)
+            suffixes.add("."+ext);
+        final AtomicBoolean invalid = new AtomicBoolean(false);
+        final AtomicInteger count = new AtomicInteger(0);
+        // only allow a limited number of inputs to wait for a worker
+        final Semaphore window = new Semaphore(threads*WINDOW);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!attrs.isRegularFile() || !matches(file.getFileName().toString(), suffixes))
+                        return FileVisitResult.CONTINUE;
+                    final File input = file.toFile();
+                    final String path = root.relativize(file).toString();
+                    final long size = attrs.size();
+                    final long modified = attrs.lastModifiedTime().toMillis();
+                    // the SVRL report isn't kept in the manifest
+                    ValidationResult last = (svrl ? null : manifest.get(path, size, modified));
+                    if (last != null) {
+                        output(input, count.incrementAndGet(), (last.isValid()?0:1), report(input, last, false, quiet), quiet, iter);
+                        if (!last.isValid())
+                            invalid.set(true);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        window.acquire();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+                    try {
+                        pool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    ValidationResult result = validate(validator, results, input);
+                                    // a failed validation is retried in the next run
+                                    if (result.isComplete())
+                                        manifest.put(path, size, modified, result);
+                                    output(input, count.incrementAndGet(), (result.isValid()?0:1), report(input, result, svrl, quiet), quiet, iter);
+                                    if (!result.isValid())
+                                        invalid.set(true);
+                                } finally {
+                                    window.release();
+                                }
+                            }
+                        });
+                    } catch (RuntimeException ex) {
+                        window.release();
+                        throw ex;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    System.err.println("!WRN: skipping input["+file+"]: "+ex);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        manifest.save();
+        return (invalid.get()?1:0);
+    }
+
+    private static boolean matches(String name, List<String> suffixes) {
+        for (String suffix : suffixes) {
+            if (name.endsWith(suffix))
+                return true;
+        }
+        return false;
+    }
+
+    private static ByteArrayOutputStream report(File input, ValidationResult result, boolean svrl, boolean quiet) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(buffer,false,"UTF-8")) {
+            report(input,result,svrl,quiet,out);
+        } catch (UnsupportedEncodingException ex) {
+            // every Java platform is required to support UTF-8
+            throw new IllegalStateException(ex);
+        }
+        return buffer;
+    }
+
+    private static void output(File input, int i, int code, ByteArrayOutputStream output, boolean quiet, boolean iter) {
+        synchronized (System.out) {
+            if (iter) {
+                System.err.print("INF: ["+i+"]"+input+" ("+input.length()+" bytes)");
+                if (!quiet)
+                    System.err.println();
+            }
+            try {
+                output.writeTo(System.out);
+                // keep the results next to the progress info
+                if (iter)
+                    System.out.flush();
+            } catch (IOException ex) {
+                System.err.println("FATAL: writing output for file["+input+"]: "+ex);
+            }
+            if (iter && quiet)
+                System.err.println(">> "+(code>0?"INVALID":"VALID"));
+        }
+    }
+
+    /**
+     * Compile, and warm up, the schemas in the list before any input is read.
+     * A line contains a schema URL, or a path relative to the list, and an
+     * optional phase.
+     */
+    private static void warmup(final SchemaRegistry registry, File list, int threads, boolean iter) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int n = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(list),"UTF-8"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+");
+                URL url = null;
+                try {
+                    url = new URL(fields[0]);
+                } catch (MalformedURLException ex) {
+                    url = new File(list.getAbsoluteFile().getParentFile(),fields[0]).toURI().toURL();
+                }
+                final URL schemaURL = url;
+                final String phase = (fields.length > 1 ? fields[1] : null);
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registry.warmup(schemaURL,phase);
+                        } catch (SchemAnonException | IOException | RuntimeException ex) {
+                            System.err.println("!WRN: couldn't warm up schema["+schemaURL+"]: "+ex);
+                        }
+                    }
+                });
+                n++;
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        if (iter)
+            System.err.println("INF: warmed up "+n+" schema(s) in "+(System.currentTimeMillis()-start)+"ms");
+    }
+
+    private static void export(final Metrics metrics, String name, final File file, final boolean print) {
+        try {
+            metrics.register(name);
+        } catch (JMException ex) {
+            System.err.println("!WRN: couldn't register the metrics as an MBean: "+ex);
+        }
+        // print and/or save the metrics however the validation ends
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if (print)
+                    metrics.print(System.err);
+                if (file != null) {
+                    try {
+                        metrics.savePrometheus(file);
+                    } catch (IOException ex) {
+                        System.err.println("!ERR: saving metrics["+file+"]: "+ex);
+                    }
+                }
+            }
+        });
+    }
+
     private static void showHelp() {
         System.err.println("INF: SchemAnon <options> -- <URL> <INPUT>? <EXT>*");
-        System.err.println("INF: <URL>      URL to the XSD Schema and/or Schematron rules");
+        System.err.println("INF: <URL>      URL to the XSD Schema or RELAX NG grammar and/or Schematron rules");
         System.err.println("INF: <INPUT>    input directory or file (default: STDIN)");
         System.err.println("INF: <EXT>      file extension to filter on in the input directory (default: xml)");
+        System.err.println("INF: SchemAnon <options> -- serve <PORT>?");
+        System.err.println("INF: <PORT>     local port of the HTTP validation server (default: "+PORT+")");
         System.err.println("INF: SchemAnon options:");
         System.err.println("INF: -p=<PHASE> Schematron phase to use (optional)");
-        System.err.println("INF: -s         Save the Schematron SVRL report (default: don't save)");
+        System.err.println("INF: -t=<NUM>   Number of validation threads (default: 1)");
+        System.err.println("INF: -b=<NUM>   Number of requests the server queues for a validation thread, and of connections for a reading thread, each queued request holds its document in memory (default: "+ValidationServer.DEFAULT_QUEUE+")");
+        System.err.println("INF: --max-body=<NUM> Maximum size in bytes of a document posted to the server, larger ones are refused with a 413; at most max(2,-t)+-t+-b documents are held in memory (default: half the heap shared by these documents, between 1MB and "+ValidationServer.DEFAULT_MAX_BODY+")");
+        System.err.println("INF: --warmup=<FILE> Compile the schemas listed in this file, one URL and optional phase per line, before reading any input (optional)");
+        System.err.println("INF: -c=<DIR>   Cache the generated Schematron XSLT in this directory (optional)");
+        System.err.println("INF: -r=<DIR>   Cache the validation results in this directory, and skip unchanged inputs (optional, ignored with -s)");
+        System.err.println("INF: -n         Validate an input directory incrementally, i.e., only inputs changed since the last run according to its "+Manifest.NAME+" (default: validate all inputs)");
+        System.err.println("INF: -o         Parse each input only once for both XSD and Schematron validation (default: parse twice)");
+        System.err.println("INF: -d         Compile the Schematron rules into a single traversal of each input, which dispatches on element name (default: a traversal per pattern)");
+        System.err.println("INF: --records=<NAME> Evaluate the Schematron rules on the elements with this name, i.e., {uri}local or local, one by one while the input is parsed, if the rules only look downward, don't select their context by position, and only the rules on the records look into their content (default: load each input as a whole)");
+        System.err.println("INF: -z         Map the inputs into memory, and decompress gzip compressed inputs (default: read the inputs as streams)");
+        System.err.println("INF: -f         Fail fast, i.e., stop validating an input at the first error (default: report all errors)");
+        System.err.println("INF: -e=<NUM>   Stop validating an input after this number of errors (default: report all errors)");
+        System.err.println("INF: --max-messages=<NUM> Keep only this number of messages per input, and count the others (default: keep all messages)");
+        System.err.println("INF: -s         Save the Schematron SVRL report in the background, so a failure to save it is reported when it happens, not next to its input (default: don't save)");
+        System.err.println("INF: -j         Read STDIN as a continuous batch of paths and/or single-line inline documents, and print a JSON line per input (default: print validation info)");
+        System.err.println("INF: -m         Print a summary of the timings of the validation steps and the Schematron rules followed by the largest wall-clock gap until the next fired-rule event, which isn't the cost of the rule itself (default: don't print)");
+        System.err.println("INF: --metrics=<FILE> Save the metrics in the Prometheus text format in this file at exit; they are also available over JMX, and at /metrics of the server (optional)");
         System.err.println("INF: -i         Print progress info (default: on progress info)");
         System.err.println("INF: -q         Be quiet (default: print validation info)");
     }
@@ -78,15 +567,110 @@ public class Main {
         boolean quiet = false;
         boolean svrl = false;
         boolean iter = false;
+        int threads = 1;
+        int maxErrors = 0;
+        int maxMessages = 0;
+        long maxBody = 0;
+        int queue = ValidationServer.DEFAULT_QUEUE;
         String phase = null;
+        File cache = null;
+        File resultCache = null;
+        File warmup = null;
+        File export = null;
+        String records = null;
         // check command line
-        OptionParser parser = new OptionParser( "p:sqi?*" );
+        OptionParser parser = new OptionParser( "p:t:b:c:r:e:ofdnzmsqij?*" );
+        parser.accepts("warmup").withRequiredArg();
+        parser.accepts("metrics").withRequiredArg();
+        parser.accepts("records").withRequiredArg();
+        parser.accepts("max-messages").withRequiredArg();
+        parser.accepts("max-body").withRequiredArg();
         OptionSet options = parser.parse(args);
         if (options.has("p"))
             phase = (String)options.valueOf("p");
+        if (options.has("c"))
+            cache = new File((String)options.valueOf("c"));
+        if (options.has("warmup"))
+            warmup = new File((String)options.valueOf("warmup"));
+        if (options.has("metrics"))
+            export = new File((String)options.valueOf("metrics"));
+        if (options.has("records")) {
+            records = (String)options.valueOf("records");
+            try {
+                QName.fromClarkName(records);
+            } catch (IllegalArgumentException ex) {
+                System.err.println("FTL: --records expects an element name, i.e., {uri}local or local!");
+                showHelp();
+                System.exit(1);
+            }
+        }
+        if (options.has("r"))
+            resultCache = new File((String)options.valueOf("r"));
         svrl = options.has("s");
         quiet = options.has("q");
         iter = options.has("i");
+        if (options.has("e")) {
+            try {
+                maxErrors = Integer.parseInt((String)options.valueOf("e"));
+            } catch (NumberFormatException ex) {
+                maxErrors = 0;
+            }
+            if (maxErrors < 1) {
+                System.err.println("FTL: -e expects a positive number of errors!");
+                showHelp();
+                System.exit(1);
+            }
+        }
+        if (options.has("f"))
+            maxErrors = 1;
+        if (options.has("max-messages")) {
+            try {
+                maxMessages = Integer.parseInt((String)options.valueOf("max-messages"));
+            } catch (NumberFormatException ex) {
+                maxMessages = 0;
+            }
+            if (maxMessages < 1) {
+                System.err.println("FTL: --max-messages expects a positive number of messages!");
+                showHelp();
+                System.exit(1);
+            }
+        }
+        if (options.has("max-body")) {
+            try {
+                maxBody = Long.parseLong((String)options.valueOf("max-body"));
+            } catch (NumberFormatException ex) {
+                maxBody = 0;
+            }
+            if (maxBody < 1) {
+                System.err.println("FTL: --max-body expects a positive number of bytes!");
+                showHelp();
+                System.exit(1);
+            }
+        }
+        if (options.has("t")) {
+            try {
+                threads = Integer.parseInt((String)options.valueOf("t"));
+            } catch (NumberFormatException ex) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                System.err.println("FTL: -t expects a positive number of threads!");
+                showHelp();
+                System.exit(1);
+            }
+        }
+        if (options.has("b")) {
+            try {
+                queue = Integer.parseInt((String)options.valueOf("b"));
+            } catch (NumberFormatException ex) {
+                queue = 0;
+            }
+            if (queue < 1) {
+                System.err.println("FTL: -b expects a positive number of requests!");
+                showHelp();
+                System.exit(1);
+            }
+        }
         if (options.has("?")) {
             showHelp();
             System.exit(0);
@@ -94,11 +678,71 @@ public class Main {
         
         List arg = options.nonOptionArguments();
         if (arg.size()<1) {
-            System.err.println("FTL: no XSD Schema or Schematron rules specified!");
+            System.err.println("FTL: no XSD Schema, RELAX NG grammar or Schematron rules specified!");
             showHelp();
             System.exit(1);
         }
         
+        SchemaRegistry registry = SchemaRegistry.getRegistry();
+        if (cache != null)
+            registry.setSchematronCache(new SchematronCache(cache));
+        registry.setDispatch(options.has("d"));
+        if (warmup != null) {
+            try {
+                warmup(registry,warmup,threads,iter);
+            } catch (IOException | InterruptedException ex) {
+                System.err.println("FATAL: warming up schemas["+warmup+"]: "+ex);
+                ex.printStackTrace(System.err);
+                System.exit(3);
+            }
+        }
+
+        if (arg.get(0).equals("serve")) {
+            int port = PORT;
+            if (arg.size()>1) {
+                try {
+                    port = Integer.parseInt((String)arg.get(1));
+                } catch (NumberFormatException ex) {
+                    System.err.println("FTL: serve expects a port number!");
+                    showHelp();
+                    System.exit(1);
+                }
+            }
+            try {
+                final ValidationServer server = new ValidationServer(new InetSocketAddress(InetAddress.getLoopbackAddress(),port),registry,threads,queue,maxErrors);
+                server.setMaxMessages(maxMessages);
+                if (maxBody > 0)
+                    server.setMaxBody(maxBody);
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        server.stop(5);
+                    }
+                });
+                export(server.getMetrics(),"server",export,false);
+                server.start();
+                System.err.println("INF: SchemAnon server listening on http://"+server.getAddress().getHostString()+":"+server.getAddress().getPort()+"/validate");
+                System.err.println("INF: accepting documents of at most "+server.getMaxBody()+" bytes, and holding at most "+ValidationServer.getMaxBodies(threads,queue)+" of them in memory");
+            } catch (IOException ex) {
+                System.err.println("FATAL: starting server on port["+port+"]: "+ex);
+                ex.printStackTrace(System.err);
+                System.exit(3);
+            }
+            return;
+        }
+
+        // save the SVRL reports in the background, and batch the console output unless it's a terminal
+        final Output stage = new Output(Output.QUEUE);
+        if (System.console() == null)
+            System.setOut(stage.getConsole());
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                stage.close();
+            }
+        });
+        output = stage;
+
         URL schemaURL = null;
         try {
             schemaURL = new URL((String)arg.get(0));            
@@ -108,7 +752,58 @@ public class Main {
             System.exit(3);
         }
         SchemAnon tron = new SchemAnon(schemaURL,phase);
+        if (cache != null)
+            tron.setSchematronCache(new SchematronCache(cache));
+        tron.setDispatch(options.has("d"));
+        tron.setSinglePass(options.has("o"));
+        tron.setMapping(options.has("z"));
+        if (options.has("m") || export != null) {
+            Metrics metrics = new Metrics();
+            metrics.watch(registry);
+            tron.setMetrics(metrics);
+            export(metrics,"cli",export,options.has("m"));
+        }
+        tron.setKeepReport(svrl);
+        tron.setMaxErrors(maxErrors);
+        tron.setMaxMessages(maxMessages);
+        tron.setRecords(records);
+        if (warmup != null) {
+            // use the schema compiled, or warmed up, in the registry
+            try {
+                tron.setValidator(registry.getValidator(schemaURL,phase));
+            } catch (SchemAnonException | IOException ex) {
+                System.err.println("FATAL: loading schema["+schemaURL+"]: "+ex);
+                ex.printStackTrace(System.err);
+                System.exit(3);
+            }
+        }
+
+        if (records != null) {
+            try {
+                if (tron.getValidator().hasSchematron() && !tron.getValidator().isStreamable())
+                    System.err.println("!WRN: the Schematron rules of schema["+schemaURL+"] don't only look downward from their context, select their context by position, or look into elements outside the records, so each input is loaded as a whole!");
+            } catch (SchemAnonException | IOException ex) {
+                System.err.println("FATAL: loading schema["+schemaURL+"]: "+ex);
+                ex.printStackTrace(System.err);
+                System.exit(3);
+            }
+        }
+
+        // the SVRL report isn't cached, so always validate when it's requested
+        ResultCache results = null;
+        if (resultCache != null && !svrl) {
+            try {
+                results = new ResultCache(resultCache,tron.getValidator(),tron.getHash());
+            } catch (SchemAnonException | IOException ex) {
+                System.err.println("FATAL: loading schema["+schemaURL+"]: "+ex);
+                ex.printStackTrace(System.err);
+                System.exit(3);
+            }
+        }
         
+        if (options.has("n") && !(arg.size()>1 && new File((String)arg.get(1)).isDirectory()))
+            System.err.println("!WRN: -n only applies to an input directory, so all inputs are validated!");
+
         int code = 0;
         if (arg.size()>1) {
             Collection<File> inputs = new ArrayList();
@@ -119,6 +814,26 @@ public class Main {
                     extensions.add((String)arg.get(e));
                 if (extensions.isEmpty())
                     extensions.add("xml");
+                if (options.has("n")) {
+                    Manifest manifest = null;
+                    SchemAnonValidator validator = null;
+                    try {
+                        validator = tron.getValidator();
+                        manifest = new Manifest(new File(location,Manifest.NAME),validator,tron.getHash());
+                    } catch (SchemAnonException | IOException ex) {
+                        System.err.println("FATAL: loading schema["+schemaURL+"]: "+ex);
+                        ex.printStackTrace(System.err);
+                        System.exit(3);
+                    }
+                    manifest.load();
+                    try {
+                        System.exit(incremental(validator,results,manifest,location,extensions,svrl,quiet,iter,threads));
+                    } catch (IOException | InterruptedException ex) {
+                        System.err.println("FATAL: validating directory["+location+"]: "+ex);
+                        ex.printStackTrace(System.err);
+                        System.exit(16);
+                    }
+                }
                 inputs = FileUtils.listFiles(location,extensions.toArray(new String[]{}),true);
                 File[] files = {};
                 files = inputs.toArray(files);
@@ -127,6 +842,17 @@ public class Main {
             } else {
                 inputs.add(location);
             }
+            if (threads > 1 && inputs.size() > 1) {
+                SchemAnonValidator validator = null;
+                try {
+                    validator = tron.getValidator();
+                } catch (SchemAnonException | IOException ex) {
+                    System.err.println("FATAL: loading schema["+schemaURL+"]: "+ex);
+                    ex.printStackTrace(System.err);
+                    System.exit(3);
+                }
+                System.exit(validate(validator,results,inputs,svrl,quiet,iter,threads));
+            }
             int i = 0;
             for (File input:inputs) {
                 if (iter) {
@@ -134,9 +860,29 @@ public class Main {
                     if (!quiet)
                         System.err.println();
                 }
-                code = validate(tron,input,svrl,quiet)>0?1:code;
+                int res = validate(tron,results,input,svrl,quiet);
+                code = res>0?1:code;
+                // keep the results next to the progress info
+                if (iter)
+                    System.out.flush();
                 if (iter && quiet)
-                    System.err.println(">> "+(code>0?"INVALID":"VALID"));
+                    System.err.println(">> "+(res>0?"INVALID":"VALID"));
+            }
+        } else if (options.has("j")) {
+            SchemAnonValidator validator = null;
+            try {
+                validator = tron.getValidator();
+            } catch (SchemAnonException | IOException ex) {
+                System.err.println("FATAL: loading schema["+schemaURL+"]: "+ex);
+                ex.printStackTrace(System.err);
+                System.exit(3);
+            }
+            try {
+                code = batch(validator,results,new BufferedReader(new InputStreamReader(System.in,"UTF-8")),svrl,quiet,threads);
+            } catch (IOException | InterruptedException ex) {
+                System.err.println("FATAL: reading from STDIN: "+ex);
+                ex.printStackTrace(System.err);
+                System.exit(16);
             }
         } else {
             try {
@@ -146,7 +892,9 @@ public class Main {
                     line = line.trim();
                     if (!line.startsWith("#")) {
                         File input = new File(line);
-                        code = validate(tron,input,svrl,quiet)>0?1:code;
+                        code = validate(tron,results,input,svrl,quiet)>0?1:code;
+                        // the input names might come in interactively
+                        System.out.flush();
                     }
                 }
             } catch(IOException ex) {
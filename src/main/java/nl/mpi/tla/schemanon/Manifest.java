@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A manifest of the inputs in a directory, with their size, modification
+ * time and last validation result, so a next run only needs to validate
+ * the inputs that changed.
+ *
+ * The manifest is only used when it was written for the same schema, phase,
+ * maximum number of errors and SchemAnon version. Inputs that are no longer
+ * seen in a run are dropped from the manifest when it's saved.
+ */
+public class Manifest {
+
+    /**
+     * The default name of the manifest in the input directory.
+     */
+    public static final String NAME = ".schemanon.manifest";
+
+    /**
+     * The magic number, and format version, of a manifest.
+     */
+    private static final int MAGIC = 0x53414D02;
+
+    /**
+     * The manifest file
+     */
+    private final File file;
+
+    /**
+     * The key of the validator that produced the results
+     */
+    private final String schema;
+
+    /**
+     * The entries of the previous run
+     */
+    private final Map<String, Entry> previous = new HashMap<String, Entry>();
+
+    /**
+     * The entries of this run
+     */
+    private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final ValidationResult result;
+
+        Entry(long size, long modified, ValidationResult result) {
+            this.size = size;
+            this.modified = modified;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Create a manifest for the results of a validator.
+     *
+     * @param file The manifest file
+     * @param validator The validator
+     * @param schemaHash The content hash of the schema, see {@link SchemAnon#getHash()}
+     */
+    public Manifest(File file, SchemAnonValidator validator, String schemaHash) {
+        this.file = file;
+        this.schema = ResultCache.key(validator, schemaHash);
+    }
+
+    /**
+     * @return the manifest file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Load the entries of the previous run, if the manifest exists and was
+     * written for the same validator.
+     */
+    public void load() {
+        if (!file.isFile())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("unknown format");
+            if (!schema.equals(in.readUTF()))
+                return;
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String path = in.readUTF();
+                long length = in.readLong();
+                long modified = in.readLong();
+                previous.put(path, new Entry(length, modified, ResultCache.read(in, systemId(path))));
+            }
+        } catch (IOException ex) {
+            System.err.println("!WRN: ignoring invalid manifest["+file+"]: "+ex);
+            previous.clear();
+        }
+    }
+
+    /**
+     * Get the last validation result of an input, if it didn't change since.
+     * The result is then also kept for the next run.
+     *
+     * @param path The path of the input, relative to the directory
+     * @param size The size of the input
+     * @param modified The modification time of the input
+     * @return The last validation result, or null if the input is new or changed
+     */
+    public ValidationResult get(String path, long size, long modified) {
+        Entry entry = previous.get(path);
+        if (entry == null || entry.size != size || entry.modified != modified)
+            return null;
+        current.put(path, entry);
+        return entry.result;
+    }
+
+    /**
+     * Record the validation result of an input.
+     *
+     * @param path The path of the input, relative to the directory
+     * @param size The size of the input
+     * @param modified The modification time of the input
+     * @param result The validation result, which should be complete
+     */
+    public void put(String path, long size, long modified, ValidationResult result) {
+        current.put(path, new Entry(size, modified, result));
+    }
+
+    /**
+     * The system id of an input, as the directory might have been moved since its messages were recorded.
+     */
+    private String systemId(String path) {
+        return new File(file.getAbsoluteFile().getParentFile(), path).toURI().toASCIIString();
+    }
+
+    /**
+     * Save the entries of this run.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        // write to a temporary file first, so an interrupted run keeps the previous manifest
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(schema);
+                out.writeInt(current.size());
+                for (Map.Entry<String, Entry> entry : current.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().modified);
+                    ResultCache.write(out, entry.getValue().result, systemId(entry.getKey()));
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * An input file mapped into memory once, so all the parsers that need to
+ * read it, e.g., the XSD validator and Saxon, read the same pages without
+ * any further system calls. A gzip compressed file is decompressed
+ * transparently.
+ *
+ * The mapping is released when the instance is garbage collected.
+ */
+final class MappedInput {
+
+    /**
+     * The maximum size of a mapped segment.
+     */
+    private static final long SEGMENT = 1L << 30;
+
+    /**
+     * The size of the decompression buffer.
+     */
+    private static final int BUFFER = 64 * 1024;
+
+    private final String systemId;
+
+    private final ByteBuffer[] segments;
+
+    private final long length;
+
+    private final boolean compressed;
+
+    private MappedInput(String systemId, ByteBuffer[] segments, long length) {
+        this.systemId = systemId;
+        this.segments = segments;
+        this.length = length;
+        this.compressed = (length >= 2 && (segments[0].get(0) & 0xFF) == 0x1F && (segments[0].get(1) & 0xFF) == 0x8B);
+    }
+
+    /**
+     * Map an input file into memory.
+     *
+     * @param file The input file
+     * @return The mapped input
+     * @throws IOException
+     */
+    static MappedInput map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            ByteBuffer[] segments = new ByteBuffer[(int)Math.max(1, (length + SEGMENT - 1) / SEGMENT)];
+            for (int i = 0; i < segments.length; i++) {
+                long pos = i * SEGMENT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(SEGMENT, length - pos));
+            }
+            // the mapping stays valid after the channel is closed
+            return new MappedInput(file.toURI().toASCIIString(), segments, length);
+        }
+    }
+
+    /**
+     * @return the size of the (compressed) file
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * @return is the file gzip compressed?
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Get a new stream of the (decompressed) input, independent of any
+     * other stream of the same input.
+     *
+     * @return The stream
+     * @throws IOException
+     */
+    InputStream newStream() throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++)
+            buffers[i] = segments[i].duplicate();
+        InputStream in = new BufferInputStream(buffers);
+        return (compressed ? new GZIPInputStream(in, BUFFER) : in);
+    }
+
+    /**
+     * Get a new source of the (decompressed) input, with the same system id
+     * as the file, independent of any other source of the same input.
+     *
+     * @return The source
+     * @throws IOException
+     */
+    Source newSource() throws IOException {
+        return new StreamSource(newStream(), systemId);
+    }
+
+    /**
+     * An InputStream reading a sequence of buffers.
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer[] buffers;
+
+        private int current = 0;
+
+        BufferInputStream(ByteBuffer[] buffers) {
+            this.buffers = buffers;
+        }
+
+        private ByteBuffer buffer() {
+            while (current < buffers.length && !buffers[current].hasRemaining())
+                current++;
+            return (current < buffers.length ? buffers[current] : null);
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buffer = buffer();
+            return (buffer != null ? buffer.get() & 0xFF : -1);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            ByteBuffer buffer = buffer();
+            if (buffer == null)
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = 0;
+            ByteBuffer buffer;
+            while (skipped < n && (buffer = buffer()) != null) {
+                int step = (int)Math.min(n - skipped, buffer.remaining());
+                buffer.position(buffer.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buffer = buffer();
+            return (buffer != null ? buffer.remaining() : 0);
+        }
+    }
+}
@@ -16,6 +16,8 @@
  */
 package nl.mpi.tla.schemanon;
 
+import org.xml.sax.SAXParseException;
+
 /**
  *
  * @author menzowindhouwer
@@ -41,6 +43,77 @@ public class Message {
      * The actual message.
      */
     String text = null;
+    /**
+     * The document, line and column of a parser message, which are only
+     * turned into a location when it's asked for.
+     */
+    private String systemId = null;
+    private int line = 0;
+    private int column = 0;
+    private boolean positioned = false;
+
+    Message() {
+    }
+
+    /**
+     * The context and test come from the schema, and are repeated for every
+     * failed assertion, so they are shared. The location and text differ per
+     * document, so they aren't.
+     */
+    Message(boolean error, String context, String test, String location, String text) {
+        this.error = error;
+        this.context = shared(context);
+        this.test = shared(test);
+        this.location = location;
+        this.text = text;
+    }
+
+    /**
+     * A message for an error or warning of the parser or the XSD validator.
+     */
+    Message(boolean error, SAXParseException ex) {
+        this(error, ex.getSystemId(), ex.getLineNumber(), ex.getColumnNumber(), ex.getMessage());
+    }
+
+    /**
+     * A message for a position in a document. The system id isn't shared, as
+     * there is one per document.
+     */
+    Message(boolean error, String systemId, int line, int column, String text) {
+        this.error = error;
+        this.text = text;
+        this.systemId = systemId;
+        this.line = line;
+        this.column = column;
+        this.positioned = true;
+    }
+
+    /**
+     * @return is the location a position in a document, see {@link #getSystemId()}, {@link #getLine()} and {@link #getColumn()}?
+     */
+    boolean isPositioned() {
+        return positioned && location == null;
+    }
+
+    String getSystemId() {
+        return systemId;
+    }
+
+    int getLine() {
+        return line;
+    }
+
+    int getColumn() {
+        return column;
+    }
+
+    /**
+     * Intern a string of the small, closed set of the schema, e.g., a rule
+     * context or test.
+     */
+    static String shared(String s) {
+        return (s != null ? s.intern() : null);
+    }
 
     /**
      * @return the error
@@ -67,6 +140,8 @@ public class Message {
      * @return the location
      */
     public String getLocation() {
+        if (location == null && positioned)
+            return systemId + ": line: "+line+" column: "+column;
         return location;
     }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of messages, which keeps at most a maximum number of them. The
+ * messages beyond the maximum are only counted, and summarised in a last
+ * warning.
+ */
+class MessageList extends AbstractList<Message> {
+
+    private final List<Message> msgList = new ArrayList<Message>();
+
+    /**
+     * The maximum number of messages to keep (0 means no limit).
+     */
+    private final int maxMessages;
+
+    private int errors = 0;
+
+    private int warnings = 0;
+
+    MessageList(int maxMessages) {
+        if (maxMessages < 0)
+            throw new IllegalArgumentException("The maximum number of messages can't be negative!");
+        this.maxMessages = maxMessages;
+    }
+
+    @Override
+    public boolean add(Message msg) {
+        if (msg.isError())
+            errors++;
+        else
+            warnings++;
+        if (maxMessages == 0 || msgList.size() < maxMessages)
+            msgList.add(msg);
+        return true;
+    }
+
+    @Override
+    public Message get(int index) {
+        if (index == msgList.size() && getDropped() > 0) {
+            Message msg = new Message();
+            msg.error = false;
+            msg.text = "Only the first "+maxMessages+" message(s) were kept, "+getDropped()+" more were dropped (in total "+errors+" error(s) and "+warnings+" warning(s)).";
+            return msg;
+        }
+        return msgList.get(index);
+    }
+
+    @Override
+    public int size() {
+        return msgList.size() + (getDropped() > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return the number of errors added, including the ones that weren't kept
+     */
+    int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the number of warnings added, including the ones that weren't kept
+     */
+    int getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * @return the number of messages that weren't kept
+     */
+    int getDropped() {
+        return errors + warnings - msgList.size();
+    }
+
+    /**
+     * Add the messages of another list, and count the ones it didn't keep.
+     */
+    void append(MessageList other) {
+        int kept = 0;
+        for (Message msg : other.msgList) {
+            add(msg);
+            if (msg.isError())
+                kept++;
+        }
+        errors += other.errors - kept;
+        warnings += other.warnings - (other.msgList.size() - kept);
+    }
+
+    /**
+     * Count the errors in a list of messages.
+     */
+    static int errors(List<Message> msgList) {
+        if (msgList instanceof MessageList)
+            return ((MessageList)msgList).getErrors();
+        int e = 0;
+        for (Message msg : msgList) {
+            if (msg.isError())
+                e++;
+        }
+        return e;
+    }
+
+    /**
+     * Count the warnings in a list of messages.
+     */
+    static int warnings(List<Message> msgList) {
+        if (msgList instanceof MessageList)
+            return ((MessageList)msgList).getWarnings();
+        return msgList.size() - errors(msgList);
+    }
+}
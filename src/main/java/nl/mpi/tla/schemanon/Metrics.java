@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Timings of the steps of schema compilation and validation, and the time
+ * after each Schematron rule fires.
+ *
+ * The time after a rule is the wall-clock gap from its fired-rule event in
+ * the SVRL until the next fired-rule event. It includes the evaluation of
+ * the rule's assertions, but also the traversal to, and the matching of, the
+ * next node, so it shows where the time goes rather than what a rule costs.
+ * A metrics object is thread-safe, so it can be shared by all validations.
+ *
+ * The validated documents, their messages and a latency histogram are
+ * counted as well. These, and the state of a watched schema registry, can be
+ * exposed over JMX and written in the Prometheus text format.
+ */
+public class Metrics implements MetricsMBean {
+
+    public static final String GET_TYPE = "getType";
+    public static final String GET_XSD = "getXSD";
+    public static final String GET_SCHEMATRON = "getSchematron";
+    public static final String VALIDATE = "validate";
+    public static final String VALIDATE_XSD = "validateXSD";
+    public static final String VALIDATE_SCHEMATRON = "validateSchematron";
+
+    /**
+     * The number of rules shown in the summary.
+     */
+    private static final int TOP_RULES = 10;
+
+    /**
+     * The count, total and maximum duration of an operation.
+     */
+    public static final class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+                // retry
+            }
+        }
+
+        /**
+         * @return the number of times the operation was done
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the total duration in nanoseconds
+         */
+        public long getTotalNanos() {
+            return total.get();
+        }
+
+        /**
+         * @return the maximum duration in nanoseconds
+         */
+        public long getMaxNanos() {
+            return max.get();
+        }
+    }
+
+    /**
+     * The upper bounds, in seconds, of the buckets of the latency histogram.
+     */
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong warnings = new AtomicLong();
+    private volatile long started = System.currentTimeMillis();
+
+    /**
+     * The schema registry whose state is exposed (might be null)
+     */
+    private volatile SchemaRegistry registry = null;
+
+    private final ConcurrentHashMap<String, Timer> operations = new ConcurrentHashMap<String, Timer>();
+
+    private final ConcurrentHashMap<String, Timer> ruleGaps = new ConcurrentHashMap<String, Timer>();
+
+    private static Timer timer(ConcurrentHashMap<String, Timer> timers, String key) {
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            Timer fresh = new Timer();
+            timer = timers.putIfAbsent(key, fresh);
+            if (timer == null)
+                timer = fresh;
+        }
+        return timer;
+    }
+
+    /**
+     * Record the duration of an operation.
+     *
+     * @param operation The operation
+     * @param start The start of the operation, see {@link System#nanoTime()}
+     */
+    void time(String operation, long start) {
+        timer(operations, operation).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record the validation of a document.
+     *
+     * @param ok Is the document valid?
+     * @param msgList The messages of the validation
+     * @param nanos The duration in nanoseconds
+     */
+    void validated(boolean ok, List<Message> msgList, long nanos) {
+        timer(operations, VALIDATE).record(nanos);
+        (ok ? valid : invalid).incrementAndGet();
+        int e = MessageList.errors(msgList);
+        int w = MessageList.warnings(msgList);
+        if (e > 0)
+            errors.addAndGet(e);
+        if (w > 0)
+            warnings.addAndGet(w);
+        int bucket = 0;
+        while (bucket < BUCKETS.length && nanos > BUCKETS[bucket] * 1e9)
+            bucket++;
+        latencies.incrementAndGet(bucket);
+    }
+
+    /**
+     * Expose the state of a schema registry as well.
+     *
+     * @param registry The registry (null to stop watching)
+     */
+    public void watch(SchemaRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Register these metrics as an MBean with the platform MBean server.
+     *
+     * @param name The value of the name key of the MBean
+     * @return The name the MBean is registered under
+     * @throws JMException
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName object = new ObjectName("nl.mpi.tla.schemanon:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, object);
+        return object;
+    }
+
+    /**
+     * Record the time from a fired-rule event until the next one.
+     *
+     * @param rule The pattern and context of the rule that fired
+     * @param nanos The time until the next fired-rule event in nanoseconds
+     */
+    void ruleGap(String rule, long nanos) {
+        timer(ruleGaps, rule).record(nanos);
+    }
+
+    /**
+     * @return the timers of the operations, by name
+     */
+    public Map<String, Timer> getOperations() {
+        return Collections.unmodifiableMap(new TreeMap<String, Timer>(operations));
+    }
+
+    /**
+     * @return the timers of the time until the next fired-rule event, by pattern and context of the rule that fired
+     */
+    public Map<String, Timer> getRuleGaps() {
+        return Collections.unmodifiableMap(new TreeMap<String, Timer>(ruleGaps));
+    }
+
+    /**
+     * Forget all timings and counts.
+     */
+    @Override
+    public void reset() {
+        operations.clear();
+        ruleGaps.clear();
+        for (int i = 0; i < latencies.length(); i++)
+            latencies.set(i, 0);
+        valid.set(0);
+        invalid.set(0);
+        errors.set(0);
+        warnings.set(0);
+        started = System.currentTimeMillis();
+    }
+
+    @Override
+    public long getDocuments() {
+        return valid.get() + invalid.get();
+    }
+
+    @Override
+    public long getValidDocuments() {
+        return valid.get();
+    }
+
+    @Override
+    public long getInvalidDocuments() {
+        return invalid.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getWarnings() {
+        return warnings.get();
+    }
+
+    @Override
+    public double getDocumentsPerSecond() {
+        long millis = System.currentTimeMillis() - started;
+        return (millis > 0 ? getDocuments() * 1000.0 / millis : 0.0);
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        Timer timer = operations.get(VALIDATE);
+        return (timer != null && timer.getCount() > 0 ? timer.getTotalNanos() / 1e6 / timer.getCount() : 0.0);
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        Timer timer = operations.get(VALIDATE);
+        return (timer != null ? timer.getMaxNanos() / 1e6 : 0.0);
+    }
+
+    @Override
+    public int getSchemas() {
+        SchemaRegistry reg = registry;
+        return (reg != null ? reg.size() : 0);
+    }
+
+    @Override
+    public double getSchemaHitRate() {
+        SchemaRegistry reg = registry;
+        if (reg == null)
+            return 0.0;
+        long requests = reg.getHits() + reg.getMisses();
+        return (requests > 0 ? (double)reg.getHits() / requests : 0.0);
+    }
+
+    /**
+     * Write the metrics in the Prometheus text exposition format.
+     *
+     * @param out The writer
+     * @throws IOException
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        StringBuilder text = new StringBuilder();
+        family(text, "schemanon_documents_total", "counter", "Documents validated.");
+        text.append("schemanon_documents_total{result=\"valid\"} ").append(valid.get()).append('\n');
+        text.append("schemanon_documents_total{result=\"invalid\"} ").append(invalid.get()).append('\n');
+        family(text, "schemanon_messages_total", "counter", "Validation messages.");
+        text.append("schemanon_messages_total{severity=\"error\"} ").append(errors.get()).append('\n');
+        text.append("schemanon_messages_total{severity=\"warning\"} ").append(warnings.get()).append('\n');
+        family(text, "schemanon_validation_seconds", "histogram", "Latency of the validation of a document.");
+        long count = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            count += latencies.get(i);
+            text.append("schemanon_validation_seconds_bucket{le=\"").append(BUCKETS[i]).append("\"} ").append(count).append('\n');
+        }
+        count += latencies.get(BUCKETS.length);
+        text.append("schemanon_validation_seconds_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        Timer validate = operations.get(VALIDATE);
+        text.append("schemanon_validation_seconds_sum ").append(validate != null ? validate.getTotalNanos() / 1e9 : 0.0).append('\n');
+        text.append("schemanon_validation_seconds_count ").append(count).append('\n');
+        family(text, "schemanon_operation_seconds", "summary", "Duration of the steps of schema compilation and validation.");
+        for (Map.Entry<String, Timer> op : getOperations().entrySet()) {
+            text.append("schemanon_operation_seconds_sum{operation=\"").append(op.getKey()).append("\"} ").append(op.getValue().getTotalNanos() / 1e9).append('\n');
+            text.append("schemanon_operation_seconds_count{operation=\"").append(op.getKey()).append("\"} ").append(op.getValue().getCount()).append('\n');
+        }
+        SchemaRegistry reg = registry;
+        if (reg != null) {
+            family(text, "schemanon_schemas", "gauge", "Compiled schemas in the registry.");
+            text.append("schemanon_schemas ").append(reg.size()).append('\n');
+            family(text, "schemanon_schema_requests_total", "counter", "Requests for a compiled schema.");
+            text.append("schemanon_schema_requests_total{result=\"hit\"} ").append(reg.getHits()).append('\n');
+            text.append("schemanon_schema_requests_total{result=\"miss\"} ").append(reg.getMisses()).append('\n');
+            family(text, "schemanon_schema_evictions_total", "counter", "Compiled schemas evicted from the registry.");
+            text.append("schemanon_schema_evictions_total ").append(reg.getEvictions()).append('\n');
+        }
+        out.write(text.toString());
+        out.flush();
+    }
+
+    private static void family(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Save the metrics in the Prometheus text exposition format. The file is
+     * replaced atomically, so a collector never reads a partial file.
+     *
+     * @param file The file
+     * @throws IOException
+     */
+    public void savePrometheus(File file) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                writePrometheus(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Print a summary of the operations, and of the rules followed by the largest gaps.
+     *
+     * @param out The stream to print to
+     */
+    public void print(PrintStream out) {
+        header(out, "operation");
+        for (Map.Entry<String, Timer> op : getOperations().entrySet())
+            print(out, op.getKey(), op.getValue());
+        List<Map.Entry<String, Timer>> top = new ArrayList<Map.Entry<String, Timer>>(getRuleGaps().entrySet());
+        if (top.isEmpty())
+            return;
+        Collections.sort(top, new Comparator<Map.Entry<String, Timer>>() {
+            @Override
+            public int compare(Map.Entry<String, Timer> a, Map.Entry<String, Timer> b) {
+                return Long.compare(b.getValue().getTotalNanos(), a.getValue().getTotalNanos());
+            }
+        });
+        out.println("INF: time until the next fired-rule event, by the rule that fired before it:");
+        header(out, "rule (pattern context)");
+        for (Map.Entry<String, Timer> rule : top.subList(0, Math.min(TOP_RULES, top.size())))
+            print(out, rule.getKey(), rule.getValue());
+    }
+
+    private static void header(PrintStream out, String name) {
+        out.println(String.format("INF: %-20s %8s %13s %13s %13s", name, "count", "total(ms)", "mean(ms)", "max(ms)"));
+    }
+
+    private static void print(PrintStream out, String name, Timer timer) {
+        long count = timer.getCount();
+        out.println(String.format("INF: %-20s %8d %13.3f %13.3f %13.3f", name, count, timer.getTotalNanos() / 1e6, (count > 0 ? timer.getTotalNanos() / 1e6 / count : 0.0), timer.getMaxNanos() / 1e6));
+    }
+}
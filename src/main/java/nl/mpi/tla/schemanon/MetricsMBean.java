@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+/**
+ * The management interface of the {@link Metrics}.
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return the number of validated documents
+     */
+    long getDocuments();
+
+    /**
+     * @return the number of valid documents
+     */
+    long getValidDocuments();
+
+    /**
+     * @return the number of invalid documents
+     */
+    long getInvalidDocuments();
+
+    /**
+     * @return the number of error messages
+     */
+    long getErrors();
+
+    /**
+     * @return the number of warning messages
+     */
+    long getWarnings();
+
+    /**
+     * @return the number of validated documents per second since the start, or the last reset
+     */
+    double getDocumentsPerSecond();
+
+    /**
+     * @return the mean latency of the validation of a document in milliseconds
+     */
+    double getMeanLatencyMillis();
+
+    /**
+     * @return the maximum latency of the validation of a document in milliseconds
+     */
+    double getMaxLatencyMillis();
+
+    /**
+     * @return the number of compiled schemas in the watched registry
+     */
+    int getSchemas();
+
+    /**
+     * @return the fraction of the requests for a compiled schema that were answered by the watched registry
+     */
+    double getSchemaHitRate();
+
+    /**
+     * Forget all timings and counts.
+     */
+    void reset();
+}
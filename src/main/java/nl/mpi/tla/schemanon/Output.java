@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * The output stage of the command line. The console output is batched in a
+ * large buffer, instead of being flushed line by line, and the SVRL reports
+ * are saved by a background thread, so the validation threads don't wait for
+ * the console or the disk. The buffer is only flushed when it's full, on
+ * request or at the end, so it isn't installed for a terminal, and the
+ * results are flushed per input when progress info is printed to STDERR. A
+ * failure to save a report is logged by the writer thread, so it doesn't
+ * appear next to the output of its input.
+ */
+class Output {
+
+    /**
+     * The size of the console buffer.
+     */
+    static final int BUFFER = 1 << 16;
+
+    /**
+     * The default number of SVRL reports that may wait to be saved.
+     */
+    static final int QUEUE = 64;
+
+    private final PrintStream console;
+
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * @param queue The maximum number of SVRL reports waiting to be saved, when reached the validation waits for the writer
+     */
+    Output(int queue) {
+        if (queue < 1)
+            throw new IllegalArgumentException("The queue of SVRL reports should hold at least 1 report!");
+        this.console = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER), false);
+        this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SchemAnon-SVRL-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                // bound the number of reports held in memory
+                if (executor.isShutdown())
+                    throw new RejectedExecutionException("The SVRL writer has been closed!");
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the buffered console, which is only flushed when the buffer is full or on request
+     */
+    PrintStream getConsole() {
+        return console;
+    }
+
+    /**
+     * Save an SVRL report in the background.
+     *
+     * @param report The report
+     * @param output The file to save it in
+     * @throws SaxonApiException when the writer has been closed
+     */
+    void save(final XdmNode report, final File output) throws SaxonApiException {
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SaxonUtils.save(report.asSource(), output);
+                    } catch (SaxonApiException ex) {
+                        System.err.println("FATAL: saving SVRL report["+output+"]: "+ex);
+                        ex.printStackTrace(System.err);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            throw new SaxonApiException(ex);
+        }
+    }
+
+    /**
+     * Wait for the SVRL reports still in the queue to be saved, and flush the console.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        console.flush();
+    }
+}
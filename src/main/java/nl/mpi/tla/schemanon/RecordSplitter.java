@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.sf.saxon.s9api.BuildingContentHandler;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Splits a document, while it's being parsed, into records, i.e., the
+ * outermost elements with a given name, and the spine, i.e., the rest of the
+ * document. Each record is built into its own Saxon tree and handed over as
+ * soon as it ends, so memory is proportional to the largest record instead of
+ * the whole document. The spine is handed over at the end of the document.
+ *
+ * The records, and whitespace-only text outside the records, are left out of
+ * the spine. As location steps only count siblings with the same name, the
+ * locations within the spine still match those in the whole document.
+ */
+abstract class RecordSplitter extends DefaultHandler implements LexicalHandler {
+
+    /**
+     * The name of the record elements
+     */
+    private final QName record;
+
+    private final DocumentBuilder builder;
+
+    /**
+     * The spine, and the record being built (might be null)
+     */
+    private BuildingContentHandler spine = null;
+    private BuildingContentHandler current = null;
+    private int depth = 0;
+
+    /**
+     * The location of the record being built
+     */
+    private String location = null;
+
+    /**
+     * The locations of the open spine elements, and their number of children per name
+     */
+    private final Deque<String> locations = new ArrayDeque<String>();
+    private final Deque<Map<String, Integer>> children = new ArrayDeque<Map<String, Integer>>();
+
+    /**
+     * The in-scope namespaces, which are inherited by a record, and the ones declared for the next element
+     */
+    private final NamespaceSupport namespaces = new NamespaceSupport();
+    private final List<String[]> mappings = new ArrayList<String[]>();
+
+    /**
+     * The text outside the records, which is dropped if it's whitespace only
+     */
+    private final StringBuilder text = new StringBuilder();
+
+    private boolean dtd = false;
+
+    RecordSplitter(QName record, String systemId) {
+        this.record = record;
+        this.builder = SaxonUtils.getProcessor().newDocumentBuilder();
+        if (systemId != null) {
+            try {
+                this.builder.setBaseURI(new URI(systemId));
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                // the trees just don't have a base URI
+            }
+        }
+    }
+
+    /**
+     * Handle the tree of a record, or of the spine.
+     *
+     * @param doc The tree
+     * @param location The location of the record in the document, or null for the spine
+     * @throws SAXException
+     */
+    abstract void tree(XdmNode doc, String location) throws SAXException;
+
+    /**
+     * The location step of an element, in the notation of the locations in
+     * the Schematron SVRL report.
+     */
+    static String step(String uri, String localName, int index) {
+        if (uri == null || uri.isEmpty())
+            return "/" + localName + "[" + index + "]";
+        return "/*:" + localName + "[namespace-uri()='" + uri + "'][" + index + "]";
+    }
+
+    private BuildingContentHandler newTree() throws SAXException {
+        try {
+            return builder.newBuildingContentHandler();
+        } catch (SaxonApiException ex) {
+            throw new SAXException(ex);
+        }
+    }
+
+    private static XdmNode getTree(BuildingContentHandler handler) throws SAXException {
+        try {
+            return handler.getDocumentNode();
+        } catch (SaxonApiException ex) {
+            throw new SAXException(ex);
+        }
+    }
+
+    private int index(String uri, String localName) {
+        Map<String, Integer> siblings = children.peek();
+        String name = "{" + uri + "}" + localName;
+        Integer n = siblings.get(name);
+        n = (n == null ? 1 : n + 1);
+        siblings.put(name, n);
+        return n;
+    }
+
+    private void flush() throws SAXException {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                spine.characters(text.toString().toCharArray(), 0, text.length());
+                break;
+            }
+        }
+        text.setLength(0);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        spine = newTree();
+        spine.startDocument();
+        locations.push("");
+        children.push(new HashMap<String, Integer>());
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        flush();
+        spine.endDocument();
+        tree(getTree(spine), null);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        mappings.add(new String[] {prefix, uri});
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        namespaces.pushContext();
+        for (String[] mapping : mappings)
+            namespaces.declarePrefix(mapping[0], mapping[1]);
+        if (current != null) {
+            depth++;
+            for (String[] mapping : mappings)
+                current.startPrefixMapping(mapping[0], mapping[1]);
+            mappings.clear();
+            current.startElement(uri, localName, qName, atts);
+            return;
+        }
+        flush();
+        String step = step(uri, localName, index(uri, localName));
+        if (record.getNamespaceURI().equals(uri) && record.getLocalName().equals(localName)) {
+            location = locations.peek() + step;
+            current = newTree();
+            current.startDocument();
+            // the record inherits the namespaces in scope
+            for (Enumeration<?> prefixes = namespaces.getPrefixes(); prefixes.hasMoreElements();) {
+                String prefix = (String)prefixes.nextElement();
+                if (!prefix.equals("xml"))
+                    current.startPrefixMapping(prefix, namespaces.getURI(prefix));
+            }
+            String ns = namespaces.getURI("");
+            if (ns != null && !ns.isEmpty())
+                current.startPrefixMapping("", ns);
+            mappings.clear();
+            depth = 1;
+            current.startElement(uri, localName, qName, atts);
+        } else {
+            for (String[] mapping : mappings)
+                spine.startPrefixMapping(mapping[0], mapping[1]);
+            mappings.clear();
+            spine.startElement(uri, localName, qName, atts);
+            locations.push(locations.peek() + step);
+            children.push(new HashMap<String, Integer>());
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        namespaces.popContext();
+        if (current != null) {
+            current.endElement(uri, localName, qName);
+            if (--depth == 0) {
+                current.endDocument();
+                XdmNode doc = getTree(current);
+                current = null;
+                tree(doc, location);
+            }
+            return;
+        }
+        flush();
+        spine.endElement(uri, localName, qName);
+        locations.pop();
+        children.pop();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (current != null)
+            current.characters(ch, start, length);
+        else
+            text.append(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        if (current != null)
+            current.ignorableWhitespace(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        if (current == null)
+            flush();
+        (current != null ? current : spine).processingInstruction(target, data);
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        if (dtd)
+            return;
+        if (current == null)
+            flush();
+        ContentHandler handler = (current != null ? current : spine);
+        if (handler instanceof LexicalHandler)
+            ((LexicalHandler)handler).comment(ch, start, length);
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        dtd = true;
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        dtd = false;
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+    }
+
+    /**
+     * The global parameters of the Schematron XSLT, which don't depend on the document.
+     */
+    private static final Set<String> PARAMETERS = new HashSet<String>(Arrays.asList("archiveDirParameter", "archiveNameParameter", "fileNameParameter", "fileDirParameter", "document-uri"));
+
+    private static final Pattern LITERAL = Pattern.compile("'[^']*'|\"[^\"]*\"");
+    private static final Pattern OUTWARD = Pattern.compile("\\.\\.|(^|[^\\w.\\-])((ancestor|ancestor-or-self|parent|preceding|preceding-sibling|following|following-sibling)\\s*::|(root|id|idref|element-with-id|key|doc|document|collection|doc-available|unparsed-text|unparsed-text-lines|unparsed-text-available|lang)\\s*\\()");
+    private static final Pattern POSITIONAL = Pattern.compile("(position|last)\\s*\\(");
+    private static final Pattern KEYWORD = Pattern.compile("(^|[^\\w.\\-])(and|or|return|in|then|else|satisfies|div|mod|idiv|eq|ne|lt|le|gt|ge|is|to|union|intersect|except)\\s*$");
+    private static final Pattern BOOLEAN = Pattern.compile("[=<>]|(^|[^\\w.\\-:$])(eq|ne|lt|le|gt|ge|and|or|is)\\s*[^\\w.\\-:(]");
+    private static final Pattern NUMERIC = Pattern.compile("[0-9.$(+\\-]|(number|count|sum|avg|min|max|round|round-half-to-even|floor|ceiling|abs|string-length|index-of|xs:integer|xs:decimal|xs:double|xs:float|xs:int|xs:long|xs:short|xs:byte)\\s*\\(");
+    private static final Pattern ARITHMETIC = Pattern.compile("[+]|\\s-\\s|(^|[^\\w.\\-:$])(div|mod|idiv)($|[^\\w.\\-:(])");
+    private static final Pattern AVT = Pattern.compile("\\{([^}]*)\\}");
+    private static final Pattern PLAIN = Pattern.compile("([\\w.\\-]+:)?[\\w.\\-]+");
+    private static final Pattern NAME = Pattern.compile("([A-Za-z_][\\w.\\-]*|\\*)(:([A-Za-z_][\\w.\\-]*|\\*))?");
+    private static final Pattern TOKEN = Pattern.compile("\\.\\.|(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?|\\.|\\$[A-Za-z_][\\w.\\-]*(:[A-Za-z_][\\w.\\-]*)?|([A-Za-z_][\\w.\\-]*|\\*)(:([A-Za-z_][\\w.\\-]*|\\*))?|::|//|:=|!=|<=|>=|\\S");
+    private static final Set<String> KINDS = new HashSet<String>(Arrays.asList("node", "text", "element", "comment", "processing-instruction", "document-node", "schema-element"));
+    private static final Set<String> CONTEXT_FUNCTIONS = new HashSet<String>(Arrays.asList("string", "data", "normalize-space", "string-length", "number"));
+    private static final Set<String> OPERATOR_TYPE = new HashSet<String>(Arrays.asList("instance", "cast", "castable", "treat"));
+    private static final Set<String> BINDERS = new HashSet<String>(Arrays.asList("for", "let", "some", "every"));
+    private static final Pattern VARIABLE = Pattern.compile("\\$([\\w.\\-]+(:[\\w.\\-]+)?)(\\s*(:=|in\\b))?");
+
+    /**
+     * Can the rules of a Schematron XSLT be evaluated record by record? That
+     * is, do the contexts of all the rules match elements without looking at
+     * their ancestors, and do all the expressions in the rules only look
+     * downward from the context node? The check is conservative: any absolute
+     * path, reverse or sibling axis, access to other documents or keys, use of
+     * the context position or reference to a global variable disqualifies the
+     * rules.
+     *
+     * @param xsl The Schematron XSLT
+     * @return Can the rules be evaluated record by record?
+     * @throws SchemAnonException
+     */
+    static boolean isStreamable(XdmNode xsl) throws SchemAnonException {
+        try {
+            SaxonUtils.declareXPathNamespace("xsl", "http://www.w3.org/1999/XSL/Transform");
+            for (XdmItem unit : SaxonUtils.evaluateXPath(xsl, RULES+"|/xsl:stylesheet/xsl:function")) {
+                XdmNode rule = (XdmNode)unit;
+                String match = rule.getAttributeValue(new QName("match"));
+                if (match != null && (match.contains("/") || !isDownward(match) || isPositional(match)))
+                    return false;
+                List<String> expressions = expressions(rule, ".//xsl:*");
+                Set<String> locals = new HashSet<String>();
+                for (XdmItem name : SaxonUtils.evaluateXPath(rule, ".//(xsl:variable|xsl:param)/@name"))
+                    locals.add(name.getStringValue());
+                for (String expression : expressions) {
+                    Matcher var = VARIABLE.matcher(expression);
+                    while (var.find()) {
+                        if (var.group(3) != null)
+                            locals.add(var.group(1));
+                    }
+                }
+                for (String expression : expressions) {
+                    if (!isDownward(expression))
+                        return false;
+                    Matcher var = VARIABLE.matcher(expression);
+                    while (var.find()) {
+                        if (!locals.contains(var.group(1)) && !PARAMETERS.contains(var.group(1)))
+                            return false;
+                    }
+                }
+            }
+            return true;
+        } catch (SaxonApiException ex) {
+            throw new SchemAnonException(ex);
+        }
+    }
+
+    /**
+     * The rules of a Schematron XSLT, i.e., the templates of its pattern modes.
+     */
+    private static final String RULES = "/xsl:stylesheet/xsl:template[matches(@mode,'^M[0-9]+$')][number(@priority) ge 1000]";
+
+    /**
+     * The XPath expressions in the attributes of the elements selected, i.e.,
+     * of the XSLT instructions and of the attribute value templates.
+     */
+    private static List<String> expressions(XdmNode rule, String elements) throws SaxonApiException {
+        List<String> expressions = new ArrayList<String>();
+        for (XdmItem attr : SaxonUtils.evaluateXPath(rule, elements+"/@*[parent::xsl:*][local-name()=('test','select','use','value','group-by','group-adjacent','count','from')]"))
+            expressions.add(attr.getStringValue());
+        for (XdmItem attr : SaxonUtils.evaluateXPath(rule, "("+elements+"|.//*)/@*[contains(.,'{')][not(parent::xsl:* and local-name()=('test','select','use','value','group-by','group-adjacent','count','from'))]")) {
+            Matcher avt = AVT.matcher(attr.getStringValue().replace("{{", "").replace("}}", ""));
+            while (avt.find())
+                expressions.add(avt.group(1));
+        }
+        return expressions;
+    }
+
+    /**
+     * The contexts of the rules of a Schematron XSLT that look at the
+     * content, i.e., the children or descendants, of their context node. The
+     * records are left out of the spine, so these rules can only be evaluated
+     * record by record when their context is the record element itself, see
+     * {@link #isRecordContent(Set, QName)}. The check is conservative: any
+     * child or descendant step, context item or function that takes the
+     * string value of the context counts. A context that isn't a (union of)
+     * plain element name(s) is returned as *.
+     *
+     * @param xsl The Schematron XSLT
+     * @return The names of the contexts in Clark notation
+     * @throws SchemAnonException
+     */
+    static Set<String> getContentContexts(XdmNode xsl) throws SchemAnonException {
+        Set<String> contexts = new HashSet<String>();
+        try {
+            SaxonUtils.declareXPathNamespace("xsl", "http://www.w3.org/1999/XSL/Transform");
+            for (XdmItem unit : SaxonUtils.evaluateXPath(xsl, RULES)) {
+                XdmNode rule = (XdmNode)unit;
+                String match = rule.getAttributeValue(new QName("match"));
+                String mode = rule.getAttributeValue(new QName("mode"));
+                // the location of a failed assert and the traversal to the next node belong to the skeleton, not to the rule
+                boolean content = match.contains("[") && reachesContent(match.substring(match.indexOf('[')));
+                for (String expression : expressions(rule, ".//xsl:*[not(self::xsl:apply-templates[@mode=('schematron-select-full-path','"+mode+"')])]")) {
+                    if (reachesContent(expression))
+                        content = true;
+                }
+                if (content)
+                    contexts.addAll(names(rule, match));
+            }
+        } catch (SaxonApiException ex) {
+            throw new SchemAnonException(ex);
+        }
+        return contexts;
+    }
+
+    /**
+     * The expanded names a rule matches, or * if its context isn't a (union of) plain element name(s).
+     */
+    private static Set<String> names(XdmNode rule, String match) throws SaxonApiException {
+        Set<String> names = new HashSet<String>();
+        for (String name : match.split("\\|")) {
+            name = name.trim();
+            if (!PLAIN.matcher(name).matches()) {
+                names.add("*");
+                continue;
+            }
+            String uri = "";
+            if (name.contains(":")) {
+                String prefix = name.substring(0, name.indexOf(':'));
+                uri = SaxonUtils.evaluateXPath(rule, "string(namespace-uri-for-prefix('"+prefix+"',.))").evaluateSingle().getStringValue();
+                name = name.substring(name.indexOf(':') + 1);
+            } else
+                uri = SaxonUtils.evaluateXPath(rule, "string((ancestor-or-self::*/@xpath-default-namespace)[last()])").evaluateSingle().getStringValue();
+            names.add(uri.isEmpty() ? name : "{"+uri+"}"+name);
+        }
+        return names;
+    }
+
+    /**
+     * Can the rules that look at the content of their context be evaluated record by record, i.e., are they all on the records?
+     *
+     * @param contexts The contexts of these rules, see {@link #getContentContexts(XdmNode)}
+     * @param record The name of the record elements
+     * @return Are all the contexts the record element?
+     */
+    static boolean isRecordContent(Set<String> contexts, QName record) {
+        for (String context : contexts) {
+            if (!context.equals(record.getClarkName()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Does an XPath expression look at the content of the context node? The
+     * expression is tokenized, and a token is interpreted as a name test
+     * when it's in the position of an operand and isn't preceded by an
+     * attribute axis, or the instance of, cast as or treat as keywords.
+     */
+    static boolean reachesContent(String xp) {
+        List<String> tokens = new ArrayList<String>();
+        Matcher token = TOKEN.matcher(LITERAL.matcher(xp).replaceAll("''"));
+        while (token.find())
+            tokens.add(token.group());
+        boolean operand = true;
+        boolean attribute = false;
+        boolean type = false;
+        for (int i = 0; i < tokens.size(); i++) {
+            String tok = tokens.get(i);
+            String next = (i + 1 < tokens.size() ? tokens.get(i + 1) : "");
+            if (tok.equals("//")) {
+                return true;
+            } else if (tok.equals(".")) {
+                if (operand)
+                    return true;
+                operand = false;
+            } else if (tok.equals("@")) {
+                attribute = true;
+                operand = true;
+            } else if (tok.equals(")") || tok.equals("]") || tok.equals("'") || tok.equals("..") || tok.startsWith("$") || Character.isDigit(tok.charAt(0)) || (tok.startsWith(".") && tok.length() > 1)) {
+                operand = false;
+            } else if (tok.equals("*") && !operand) {
+                // multiplication
+                operand = true;
+            } else if (NAME.matcher(tok).matches()) {
+                if (!operand) {
+                    // an operator, which might be followed by a type
+                    if (OPERATOR_TYPE.contains(tok)) {
+                        i++;
+                        type = true;
+                    }
+                    operand = true;
+                } else if (type) {
+                    type = false;
+                    operand = false;
+                    if (next.equals("(")) {
+                        // skip the parameters of a kind test
+                        int depth = 0;
+                        do {
+                            String t = tokens.get(++i);
+                            if (t.equals("("))
+                                depth++;
+                            else if (t.equals(")"))
+                                depth--;
+                        } while (depth > 0 && i + 1 < tokens.size());
+                    }
+                } else if (attribute) {
+                    attribute = false;
+                    operand = false;
+                } else if (next.equals("::")) {
+                    if (tok.equals("attribute") || tok.equals("self"))
+                        attribute = true;
+                    else
+                        return true;
+                    i++;
+                } else if (next.equals("(")) {
+                    if (KINDS.contains(tok))
+                        return true;
+                    if (i + 2 < tokens.size() && tokens.get(i + 2).equals(")") && CONTEXT_FUNCTIONS.contains(tok))
+                        return true;
+                } else if (BINDERS.contains(tok) && next.startsWith("$")) {
+                    // for, let, some or every
+                } else {
+                    // a name test on the child axis
+                    return true;
+                }
+            } else {
+                operand = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does a match pattern select its nodes by position, e.g., item[1],
+     * item[last()] or item[position()=2]? A record is loaded on its own, so
+     * it's always the first, and a predicate that might be numeric is
+     * treated as positional.
+     */
+    static boolean isPositional(String match) {
+        String expr = LITERAL.matcher(match).replaceAll("''");
+        if (POSITIONAL.matcher(expr).find())
+            return true;
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+            if (c == '[' && depth++ == 0) {
+                start = i + 1;
+            } else if (c == ']' && --depth == 0) {
+                String predicate = expr.substring(start, i).trim();
+                if (!BOOLEAN.matcher(predicate).find() && (NUMERIC.matcher(predicate).lookingAt() || ARITHMETIC.matcher(predicate).find()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDownward(String xp) {
+        String expr = LITERAL.matcher(xp).replaceAll("''");
+        if (OUTWARD.matcher(expr).find())
+            return false;
+        int predicates = 0;
+        for (int i = 0; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+            if (c == '[') {
+                predicates++;
+            } else if (c == ']') {
+                predicates--;
+            } else if (c == '/') {
+                // an absolute path starts an expression, or follows an operator or a keyword
+                String before = expr.substring(0, i).trim();
+                if (before.isEmpty() || "([,|=<>!+-{".indexOf(before.charAt(before.length() - 1)) >= 0 || KEYWORD.matcher(before).find())
+                    return false;
+            } else if (predicates == 0 && (i == 0 || !isNameChar(expr.charAt(i - 1))) && POSITIONAL.matcher(expr).region(i, expr.length()).lookingAt()) {
+                // the position of the context node differs between the record and the whole document
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+    }
+}
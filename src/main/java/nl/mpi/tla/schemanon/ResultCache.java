@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A persistent cache of validation results, so unchanged inputs don't need
+ * to be validated again.
+ *
+ * An entry is keyed by a content hash of the input, the content hash of the
+ * schema, the phase, the maximum number of errors and the SchemAnon version.
+ * Entries are stored in a compact binary format as {@code <xx>/<key>.res},
+ * where {@code <xx>} are the first two characters of the key. The SVRL report
+ * isn't cached. The position of a parser message in the input is stored
+ * without the input's system id, which is filled in when the entry is read,
+ * as the same content might be found in another file.
+ */
+public class ResultCache {
+
+    /**
+     * The magic number, and format version, of an entry.
+     */
+    private static final int MAGIC = 0x53415202;
+
+    /**
+     * The cache directory
+     */
+    private final File dir;
+
+    /**
+     * The part of the key shared by all inputs validated by the same validator
+     */
+    private final String schema;
+
+    /**
+     * Create a cache for the results of a validator.
+     *
+     * @param dir The cache directory
+     * @param validator The validator
+     * @param schemaHash The content hash of the schema, see {@link SchemAnon#getHash()}
+     */
+    public ResultCache(File dir, SchemAnonValidator validator, String schemaHash) {
+        this.dir = dir;
+        this.schema = key(validator, schemaHash);
+    }
+
+    /**
+     * Get the part of the key that determines the results of a validator,
+     * besides the input.
+     */
+    static String key(SchemAnonValidator validator, String schemaHash) {
+        return schemaHash + "\u0000" + (validator.getPhase() != null ? validator.getPhase() : "#ALL") + "\u0000" + validator.getMaxErrors() + "\u0000" + SchematronCache.getVersion() + (validator.isDispatch() ? "\u0000dispatch" : "") + (validator.getRecords() != null ? "\u0000" + validator.getRecords() : "") + (validator.getMaxMessages() > 0 ? "\u0000" + validator.getMaxMessages() : "");
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Compute the content hash of an input.
+     *
+     * @param input The input file
+     * @return The hex encoded SHA-256 hash
+     * @throws IOException
+     */
+    public static String hash(File input) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(new FileInputStream(input), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) >= 0) {
+                // just digest
+            }
+        }
+        return SchematronCache.hex(digest.digest());
+    }
+
+    private File entry(String hash) {
+        MessageDigest digest = newDigest();
+        digest.update(hash.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(schema.getBytes(StandardCharsets.UTF_8));
+        String key = SchematronCache.hex(digest.digest());
+        return new File(new File(dir, key.substring(0, 2)), key + ".res");
+    }
+
+    /**
+     * Load a validation result from the cache.
+     *
+     * @param hash The content hash of the input
+     * @param systemId The system id of the input
+     * @return The validation result, or null if there is no (valid) entry
+     */
+    public ValidationResult get(String hash, String systemId) {
+        File res = entry(hash);
+        if (!res.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(res)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("unknown format");
+            return read(in, systemId);
+        } catch (IOException ex) {
+            System.err.println("!WRN: ignoring invalid result cache entry["+res+"]: "+ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store a validation result in the cache.
+     *
+     * @param hash The content hash of the input
+     * @param systemId The system id of the input
+     * @param result The validation result, which should be complete
+     * @throws IOException
+     */
+    public void put(String hash, String systemId, ValidationResult result) throws IOException {
+        File res = entry(hash);
+        File shard = res.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdirs())
+            throw new IOException("Couldn't create the result cache directory["+shard+"]");
+        // write to a temporary file first, so concurrent runs never see a partial entry
+        File tmp = File.createTempFile(res.getName(), ".tmp", shard);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                write(out, result, systemId);
+            }
+            Files.move(tmp.toPath(), res.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Write the validity and the messages of a validation result, positions
+     * in the input are written without its system id.
+     */
+    static void write(DataOutputStream out, ValidationResult result, String systemId) throws IOException {
+        out.writeBoolean(result.isValid());
+        out.writeInt(result.getMessages().size());
+        for (Message msg : result.getMessages()) {
+            out.writeBoolean(msg.isError());
+            writeString(out, msg.getContext());
+            writeString(out, msg.getTest());
+            boolean input = msg.isPositioned() && systemId != null && systemId.equals(msg.getSystemId());
+            out.writeBoolean(input);
+            if (input) {
+                out.writeInt(msg.getLine());
+                out.writeInt(msg.getColumn());
+            } else
+                writeString(out, msg.getLocation());
+            writeString(out, msg.getText());
+        }
+    }
+
+    /**
+     * Read the validity and the messages of a validation result, and locate
+     * positions in the input.
+     */
+    static ValidationResult read(DataInputStream in, String systemId) throws IOException {
+        boolean valid = in.readBoolean();
+        int size = in.readInt();
+        List<Message> msgList = new ArrayList<Message>(size);
+        for (int i = 0; i < size; i++) {
+            boolean error = in.readBoolean();
+            String context = readString(in);
+            String test = readString(in);
+            if (in.readBoolean()) {
+                // a position in the input
+                int line = in.readInt();
+                int column = in.readInt();
+                msgList.add(new Message(error, systemId, line, column, readString(in)));
+            } else {
+                String location = readString(in);
+                msgList.add(new Message(error, context, test, location, readString(in)));
+            }
+        }
+        return new ValidationResult(valid, msgList, null);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0)
+            return null;
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.util.List;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Turns the failed assertions of a Schematron SVRL report into messages,
+ * while the report is being generated. So the report never has to be
+ * materialised, and each assertion is handled once.
+ *
+ * The context and role of a failed assertion are those of the last
+ * fired rule preceding it.
+ */
+class SVRLHandler extends DefaultHandler {
+
+    /**
+     * The SVRL namespace
+     */
+    static final String SVRL = "http://purl.oclc.org/dsdl/svrl";
+
+    /**
+     * The processing instruction that names the pattern of the next fired rule, see DispatchByElement.xsl.
+     */
+    static final String PATTERN = "schemanon-pattern";
+
+    /**
+     * The list of messages
+     */
+    private final List<Message> msgList;
+
+    /**
+     * The context and role of the last fired rule
+     */
+    private String context = null;
+    private String role = null;
+
+    /**
+     * The failed assertion being read (might be null)
+     */
+    private Message msg = null;
+    private final StringBuilder text = new StringBuilder();
+
+    private int depth = 0;
+    private int errors = 0;
+
+    /**
+     * Abort the transformation when this number of errors is reached (0 means no limit)
+     */
+    private final int maxErrors;
+
+    /**
+     * The metrics to record the rule timings in (might be null)
+     */
+    private final Metrics metrics;
+
+    /**
+     * The active pattern, and the last fired rule and when it fired
+     */
+    private String pattern = null;
+    private int patterns = 0;
+    private String rule = null;
+    private long fired = 0;
+
+    SVRLHandler(List<Message> msgList, int maxErrors, Metrics metrics) {
+        this.msgList = msgList;
+        this.maxErrors = maxErrors;
+        this.metrics = metrics;
+    }
+
+    SVRLHandler(List<Message> msgList, int maxErrors) {
+        this(msgList, maxErrors, null);
+    }
+
+    SVRLHandler(List<Message> msgList) {
+        this(msgList, 0);
+    }
+
+    /**
+     * @return the number of failed assertions that aren't warnings
+     */
+    int getErrors() {
+        return errors;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        // the SVRL elements of interest are all children of the svrl:schematron-output root
+        if (++depth == 2 && SVRL.equals(uri)) {
+            if (localName.equals("fired-rule")) {
+                context = atts.getValue("", "context");
+                role = atts.getValue("", "role");
+                if (metrics != null) {
+                    fired();
+                    rule = pattern + " " + context;
+                    fired = System.nanoTime();
+                }
+            } else if (localName.equals("active-pattern")) {
+                patterns++;
+                if (metrics != null) {
+                    fired();
+                    pattern = atts.getValue("", "id");
+                    if (pattern == null)
+                        pattern = atts.getValue("", "name");
+                    if (pattern == null)
+                        pattern = "#" + patterns;
+                }
+            } else if (localName.equals("failed-assert")) {
+                msg = new Message(!"warning".equals(role), context, atts.getValue("", "test"), atts.getValue("", "location"), null);
+                text.setLength(0);
+            }
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        // with dispatch on element name the fired rules don't follow the active-pattern of their pattern
+        if (metrics != null && depth == 1 && PATTERN.equals(target))
+            pattern = data.trim();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (metrics != null)
+            fired();
+    }
+
+    /**
+     * Record the time since the last fired-rule event.
+     */
+    private void fired() {
+        if (rule != null)
+            metrics.ruleGap(rule, System.nanoTime() - fired);
+        rule = null;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (msg != null)
+            text.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (depth-- == 2 && msg != null) {
+            msg.text = text.toString();
+            msgList.add(msg);
+            if (msg.error)
+                errors++;
+            msg = null;
+            if (maxErrors > 0 && errors >= maxErrors) {
+                ErrorLimitException limit = new ErrorLimitException(maxErrors);
+                limit.addMessage(msgList);
+                throw limit;
+            }
+        }
+    }
+}
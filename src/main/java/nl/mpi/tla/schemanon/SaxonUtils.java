@@ -19,12 +19,18 @@ package nl.mpi.tla.schemanon;
 import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Source;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
@@ -45,52 +51,112 @@ public class SaxonUtils {
      * related instance, e.g., an XML document or an XSLT transform, should
      * share this processor. Otherwise Saxon will complain as it can't used
      * shared constructs, like the NamePool.
+     *
+     * The processor, and the XSLT compiler and document builder, which are
+     * never reconfigured and can thus be used concurrently, are created when
+     * the holder class is initialized, i.e., at first use, without any locking.
      */
-    static private Processor sxProcessor = null;
+    private static class Holder {
+        static final Processor PROCESSOR = new Processor(false);
+        /**
+         * The Saxon XSLT compiler.
+         */
+        static final XsltCompiler XSLT_COMPILER = PROCESSOR.newXsltCompiler();
+        /**
+         * The Saxon Document Builder
+         */
+        static final DocumentBuilder DOCUMENT_BUILDER = PROCESSOR.newDocumentBuilder();
+    }
     /**
-     * The Saxon XSLT compiler.
+     * The compiled identity stylesheet, used to save documents.
      */
-    static private XsltCompiler sxXsltCompiler = null;
+    private static class Identity {
+        static final XsltExecutable XSL;
+        static {
+            try {
+                XSL = buildTransformer(SaxonUtils.class.getResource("/identity.xsl"));
+            } catch (SchemAnonException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+    }
     /**
-     * The Saxon XPath compiler.
+     * An immutable snapshot of the XML namespaces declared for XPath expressions.
      */
-    static private XPathCompiler sxXPathCompiler = null;
+    private static final class Namespaces {
+        final Map<String, String> map;
+        /**
+         * A stable representation of the declared namespaces, which is part of
+         * the key of a compiled XPath expression.
+         */
+        final String context;
+
+        Namespaces(Map<String, String> map) {
+            this.map = Collections.unmodifiableMap(new TreeMap<String, String>(map));
+            this.context = this.map.toString();
+        }
+    }
     /**
-     * The Saxon Document Builder
+     * An XPath compiler and the namespaces declared on it.
      */
-    static private DocumentBuilder sxDocumentBuilder = null;
+    private static final class Compiler {
+        final Namespaces namespaces;
+        final XPathCompiler xpc;
 
+        Compiler(Namespaces namespaces, XPathCompiler xpc) {
+            this.namespaces = namespaces;
+            this.xpc = xpc;
+        }
+    }
+    /**
+     * The XML namespaces declared for XPath expressions, replaced by a new
+     * snapshot when a namespace is declared.
+     */
+    static private final AtomicReference<Namespaces> sxXPathNamespaces = new AtomicReference<Namespaces>(new Namespaces(new TreeMap<String, String>()));
+    /**
+     * The Saxon XPath compiler of each thread, and the namespaces declared
+     * on it, as declaring a namespace changes a compiler.
+     */
+    static private final ThreadLocal<Compiler> sxXPathCompiler = new ThreadLocal<Compiler>();
     /**
-     * Get a Saxon processor, i.e., just-in-time create the Singleton.
+     * The maximum number of compiled XPath expressions to cache.
+     */
+    static private final int XPATH_CACHE_SIZE = 1024;
+    /**
+     * The cache of compiled XPath expressions, keyed by namespace context and expression.
+     */
+    static private final ConcurrentHashMap<String, XPathExecutable> sxXPathCache = new ConcurrentHashMap<String, XPathExecutable>();
+
+    /**
+     * Get the Saxon processor.
      *
      * @return The Saxon processor
      */
-    public static synchronized Processor getProcessor() {
-        if (sxProcessor == null) {
-            sxProcessor = new Processor(false);
-        }
-        return sxProcessor;
+    public static Processor getProcessor() {
+        return Holder.PROCESSOR;
     }
 
-    private static synchronized XsltCompiler getXsltCompiler() {
-        if (sxXsltCompiler == null) {
-            sxXsltCompiler = getProcessor().newXsltCompiler();
-        }
-        return sxXsltCompiler;
+    private static XsltCompiler getXsltCompiler() {
+        return Holder.XSLT_COMPILER;
     }
 
-    private static synchronized XPathCompiler getXPathCompiler() {
-        if (sxXPathCompiler == null) {
-            sxXPathCompiler = getProcessor().newXPathCompiler();
+    /**
+     * Get the XPath compiler of this thread, with the namespaces declared.
+     */
+    private static XPathCompiler getXPathCompiler(Namespaces namespaces) {
+        Compiler compiler = sxXPathCompiler.get();
+        if (compiler == null || compiler.namespaces != namespaces) {
+            XPathCompiler xpc = getProcessor().newXPathCompiler();
+            for (Map.Entry<String, String> ns : namespaces.map.entrySet())
+                xpc.declareNamespace(ns.getKey(), ns.getValue());
+            compiler = new Compiler(namespaces, xpc);
+            sxXPathCompiler.set(compiler);
         }
-        return sxXPathCompiler;
+        return compiler.xpc;
     }
 
-    private static synchronized DocumentBuilder getDocumentBuilder() {
-        if (sxDocumentBuilder == null) {
-            sxDocumentBuilder = getProcessor().newDocumentBuilder();
-        }
-        return sxDocumentBuilder;
+    private static DocumentBuilder getDocumentBuilder() {
+        return Holder.DOCUMENT_BUILDER;
     }
 
     /**
@@ -183,19 +249,41 @@ public class SaxonUtils {
      * @param nsUri The actual namespace URI.
      */
     static public void declareXPathNamespace(String nsPrefix, String nsUri) {
-        getXPathCompiler().declareNamespace(nsPrefix, nsUri);
+        Namespaces current;
+        Namespaces declared;
+        do {
+            current = sxXPathNamespaces.get();
+            if (nsUri.equals(current.map.get(nsPrefix)))
+                return;
+            Map<String, String> map = new TreeMap<String, String>(current.map);
+            map.put(nsPrefix, nsUri);
+            declared = new Namespaces(map);
+        } while (!sxXPathNamespaces.compareAndSet(current, declared));
     }
 
     /**
      * Compile an XPath expression. Use evaluate(), evaluateSingle() or
      * iterator() to actually execute the XPath expression.
      *
+     * The compiled expression is cached, so any next compilation of the same
+     * expression, with the same declared namespaces, is for free.
+     *
      * @param xp The XPath expression.
      * @return A compiled XPath expression.
      * @throws SaxonApiException
      */
     static public XPathSelector compileXPath(String xp) throws SaxonApiException {
-        return getXPathCompiler().compile(xp).load();
+        Namespaces namespaces = sxXPathNamespaces.get();
+        String key = namespaces.context + xp;
+        XPathExecutable xpe = sxXPathCache.get(key);
+        if (xpe == null) {
+            // another thread might compile the same expression at the same time, which is harmless
+            xpe = getXPathCompiler(namespaces).compile(xp);
+            if (sxXPathCache.size() >= XPATH_CACHE_SIZE)
+                sxXPathCache.clear();
+            sxXPathCache.put(key, xpe);
+        }
+        return xpe.load();
     }
 
     /**
@@ -225,7 +313,7 @@ public class SaxonUtils {
      */
     static public void save(Source source,File result) throws SaxonApiException {
         try {
-            XsltTransformer transformer = buildTransformer(SaxonUtils.class.getResource("/identity.xsl")).load();
+            XsltTransformer transformer = Identity.XSL.load();
             transformer.setSource(source);
             transformer.setDestination(getProcessor().newSerializer(result));
             transformer.transform();
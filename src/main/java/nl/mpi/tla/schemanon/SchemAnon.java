@@ -19,19 +19,20 @@ package nl.mpi.tla.schemanon;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.XMLConstants;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
-import javax.xml.validation.Validator;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmDestination;
-import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
@@ -54,7 +55,7 @@ public class SchemAnon {
     private final String phase;
     
     /**
-     * The "immutable in-memory representation of [the XSD] grammar".
+     * The "immutable in-memory representation of [the XSD or RELAX NG] grammar".
      */
     private Schema xsdSchema = null;
     
@@ -62,6 +63,12 @@ public class SchemAnon {
      * The "immutable, and therefore thread-safe," "compiled form of [the Schematron] stylesheet".
      */
     private XsltExecutable schemaTron = null;
+    private boolean schematronCompiled = false;
+    
+    /**
+     * The compiled schema.
+     */
+    private SchemAnonValidator validator = null;
     
     /**
      * The list of validation messages compiled a the last run of the validator.
@@ -73,13 +80,74 @@ public class SchemAnon {
      */
     private XdmNode validationReport = null;
     private LSResourceResolver resourceResolver = null;
+
+    /**
+     * The persistent cache for the generated Schematron XSLT (might be null)
+     */
+    private SchematronCache cache = null;
+
+    /**
+     * Parse an input document only once for both the XSD and the Schematron validation?
+     */
+    private boolean singlePass = false;
+
+    /**
+     * Map input files into memory?
+     */
+    private boolean mapped = false;
+
+    /**
+     * The metrics to record the timings in (might be null)
+     */
+    private Metrics metrics = null;
+
+    /**
+     * Compile the Schematron XSLT into a single traversal, which dispatches on element name?
+     */
+    private boolean dispatch = false;
+
+    /**
+     * Can the Schematron rules be evaluated record by record?
+     */
+    private boolean streamable = false;
+
+    /**
+     * The contexts of the Schematron rules that look at the content of their context node, see {@link RecordSplitter#getContentContexts(XdmNode)}
+     */
+    private Set<String> contents = Collections.emptySet();
+
+    /**
+     * The name of the record elements to evaluate the Schematron rules on one by one (might be null)
+     */
+    private String records = null;
+
+    /**
+     * Keep the Schematron SVRL validation report?
+     */
+    private boolean keepReport = true;
+
+    /**
+     * Stop the validation when this number of errors is reached (0 means no limit)
+     */
+    private int maxErrors = 0;
+
+    /**
+     * Keep at most this number of messages per document (0 means no limit)
+     */
+    private int maxMessages = 0;
     
     /**
      * The type of schema document
      */
     
     private XdmNode schema = null;
-    public enum Type { XSD, SCH };
+    private String hash = null;
+    public enum Type { XSD, RNG, SCH };
+
+    /**
+     * The compiled stylesheets of the Schematron pipeline, shared by all schemas.
+     */
+    private static final ConcurrentHashMap<String, XsltExecutable> pipeline = new ConcurrentHashMap<String, XsltExecutable>();
     private Type type = null;
 
     public SchemAnon(Source srcSchema,String phase) {
@@ -98,35 +166,213 @@ public class SchemAnon {
     public SchemAnon(URL schemaURL) {
         this(schemaURL,null);
     }
-    
+
     /**
      * Return the type of the schema:
      * - XSD: XML Schema (might have embedded Schematron rules)
+     * - RNG: RELAX NG grammar (might have embedded Schematron rules)
      * - SCH: Schematron rules
      * @return Type
      * @throws SchemAnonException 
      */
     public Type getType() throws SchemAnonException {
         if (type == null) {
+            long start = System.nanoTime();
 	    try {
                 // Load the schema
                 this.schema = SaxonUtils.buildDocument(this.srcSchema);
-                // XSD or Schematron?
+                // XSD, RELAX NG or Schematron?
                 SaxonUtils.declareXPathNamespace("sch", "http://purl.oclc.org/dsdl/schematron");
                 SaxonUtils.declareXPathNamespace("xs", "http://www.w3.org/2001/XMLSchema");
+                SaxonUtils.declareXPathNamespace("rng", XMLConstants.RELAXNG_NS_URI);
                 if (SaxonUtils.evaluateXPath(schema, "exists(/sch:schema)").effectiveBooleanValue())
                     this.type = Type.SCH;
                 else if (SaxonUtils.evaluateXPath(schema, "exists(/xs:schema)").effectiveBooleanValue())
                     this.type = Type.XSD;
+                else if (SaxonUtils.evaluateXPath(schema, "exists(/(rng:grammar|rng:element))").effectiveBooleanValue())
+                    this.type = Type.RNG;
                 else
-                    throw new SchemAnonException("Unknown schema type! Only XSD or Schematron are supported!");
+                    throw new SchemAnonException("Unknown schema type! Only XSD, RELAX NG or Schematron are supported!");
 	    } catch (SaxonApiException ex) {
 		throw new SchemAnonException(ex);
-	    }
+	    } finally {
+                time(Metrics.GET_TYPE, start);
+            }
         }
         return this.type;
     }
     
+    /**
+     * Returns the compiled schema, and compiles it just-in-time. The
+     * validator is immutable, so it can be shared by multiple threads.
+     *
+     * @return The validator
+     * @throws SchemAnonException
+     * @throws IOException 
+     */
+    public synchronized SchemAnonValidator getValidator() throws SchemAnonException, IOException {
+        if (validator == null) {
+            if (msgList == null)
+                msgList = new MessageList(maxMessages);
+            validator = new SchemAnonValidator(srcSchema.getSystemId(), phase, getType(), (getType() != Type.SCH ? getXSD() : null), getSchematron(), dispatch, streamable, contents).withSinglePass(singlePass).withReport(keepReport).withMaxErrors(maxErrors).withMapping(mapped).withMetrics(metrics).withRecords(records).withMaxMessages(maxMessages);
+        }
+        return validator;
+    }
+    
+    /**
+     * Use an already compiled schema, e.g., from a {@link SchemaRegistry},
+     * instead of compiling it again. The options of this SchemAnon apply.
+     *
+     * @param compiled The compiled schema
+     */
+    synchronized void setValidator(SchemAnonValidator compiled) {
+        validator = compiled.withSinglePass(singlePass).withReport(keepReport).withMaxErrors(maxErrors).withMapping(mapped).withMetrics(metrics).withRecords(records).withMaxMessages(maxMessages);
+    }
+
+    /**
+     * Returns the content hash of the schema and all the schemas and
+     * Schematron rules it includes, and computes it just-in-time.
+     *
+     * @return The hex encoded hash
+     * @throws SchemAnonException 
+     */
+    public synchronized String getHash() throws SchemAnonException {
+        if (hash == null) {
+            this.getType();
+            hash = SchematronCache.hash(schema);
+        }
+        return hash;
+    }
+
+    /**
+     * Use a persistent cache for the generated Schematron XSLT.
+     *
+     * @param cache The cache (null to disable caching)
+     */
+    public synchronized void setSchematronCache(SchematronCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Compile the Schematron rules into a single traversal of the document,
+     * which dispatches on element name to the rules of all patterns, instead
+     * of a traversal per pattern. Patterns with rule contexts that aren't
+     * plain element names keep their own traversal. The messages of the
+     * dispatched patterns are reported in document order. Only applies to
+     * a schema that isn't compiled yet.
+     *
+     * @param dispatch Dispatch on element name?
+     */
+    public synchronized void setDispatch(boolean dispatch) {
+        this.dispatch = dispatch;
+    }
+
+    /**
+     * Parse an input document only once for both the XSD and the Schematron
+     * validation, instead of once for each.
+     *
+     * @param singlePass Parse the input document only once?
+     */
+    public synchronized void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+        if (validator != null)
+            validator = validator.withSinglePass(singlePass);
+    }
+
+    /**
+     * Map input files into memory, so the XSD and the Schematron validation
+     * read the same mapped pages, and decompress gzip compressed input files
+     * transparently.
+     *
+     * @param mapped Map input files into memory?
+     */
+    public synchronized void setMapping(boolean mapped) {
+        this.mapped = mapped;
+        if (validator != null)
+            validator = validator.withMapping(mapped);
+    }
+
+    /**
+     * Evaluate the Schematron rules on the records of a document one by one,
+     * while it's being parsed, so memory is proportional to the largest
+     * record instead of the whole document. This only applies when the rules
+     * only look downward from their context.
+     *
+     * @param records The name of the record elements in Clark notation, i.e., {uri}local (null to load the whole document)
+     * @see SchemAnonValidator#withRecords(String)
+     */
+    public synchronized void setRecords(String records) {
+        this.records = records;
+        if (validator != null)
+            validator = validator.withRecords(records);
+    }
+
+    /**
+     * Record the timings of loading and compiling the schema, of the
+     * validation steps, and of the individual Schematron rules, in the
+     * metrics.
+     *
+     * @param metrics The metrics (null to disable)
+     */
+    public synchronized void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        if (validator != null)
+            validator = validator.withMetrics(metrics);
+    }
+
+    /**
+     * @return the metrics the timings are recorded in (might be null)
+     */
+    public synchronized Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void time(String operation, long start) {
+        if (metrics != null)
+            metrics.time(operation, start);
+    }
+
+    /**
+     * Keep the Schematron SVRL validation report, so it's available via
+     * {@link #getReport()}. Otherwise the messages are extracted from the
+     * report while it's generated, and the report itself is never kept in
+     * memory.
+     *
+     * @param keepReport Keep the report? (default: true)
+     */
+    public synchronized void setKeepReport(boolean keepReport) {
+        this.keepReport = keepReport;
+        if (validator != null)
+            validator = validator.withReport(keepReport);
+    }
+
+    /**
+     * Stop the validation as soon as a number of errors is reached.
+     *
+     * @param maxErrors The maximum number of errors (0 means no limit, 1 means fail fast)
+     */
+    public synchronized void setMaxErrors(int maxErrors) {
+        if (maxErrors < 0)
+            throw new IllegalArgumentException("The maximum number of errors can't be negative!");
+        this.maxErrors = maxErrors;
+        if (validator != null)
+            validator = validator.withMaxErrors(maxErrors);
+    }
+
+    /**
+     * Keep at most a number of messages per document, the others are only
+     * counted and summarised in a last warning.
+     *
+     * @param maxMessages The maximum number of messages (0 means no limit)
+     */
+    public synchronized void setMaxMessages(int maxMessages) {
+        if (maxMessages < 0)
+            throw new IllegalArgumentException("The maximum number of messages can't be negative!");
+        this.maxMessages = maxMessages;
+        if (validator != null)
+            validator = validator.withMaxMessages(maxMessages);
+    }
+
     /**
      * Returns the Schematron XSLT, and loads it just-in-time.
      *
@@ -134,47 +380,145 @@ public class SchemAnon {
      * @throws Exception
      */
     private synchronized XsltExecutable getSchematron() throws SchemAnonException, IOException {
-	if (schemaTron == null) {
+	if (!schematronCompiled) {
+            long start = System.nanoTime();
 	    try {
-		// Load the Schematron XSL to extract the Schematron rules;
-		XsltTransformer extractSchXsl = SaxonUtils.buildTransformer(SchemAnon.class.getResource("/schematron/ExtractSchFromXSD-2.xsl")).load();
-		// Load the Schematron XSLs to 'compile' Schematron rules;
-		XsltTransformer includeSchXsl = SaxonUtils.buildTransformer(SchemAnon.class.getResource("/schematron/iso_dsdl_include.xsl")).load();
-		XsltTransformer expandSchXsl  = SaxonUtils.buildTransformer(SchemAnon.class.getResource("/schematron/iso_abstract_expand.xsl")).load();
-		XsltTransformer compileSchXsl = SaxonUtils.buildTransformer(SchemAnon.class.getResource("/schematron/iso_svrl_for_xslt2.xsl")).load();
-                if (this.phase!=null)
-                    compileSchXsl.setParameter(new QName("phase"), new XdmAtomicValue(this.phase));
-
-		// Setup the pipeline (going backwards)
-		XdmDestination destination = new XdmDestination();
-		compileSchXsl.setDestination(destination);
-		expandSchXsl.setDestination(compileSchXsl);
-		includeSchXsl.setDestination(expandSchXsl);
-                XsltTransformer start = null;
-                if (this.getType()==Type.XSD) {
-                    // Extract the Schematron rules from the schema        
-                    extractSchXsl.setDestination(includeSchXsl);
-                    extractSchXsl.setSource(schema.asSource());
-                    start = extractSchXsl;
-                } else if (this.getType()==Type.SCH) {
-                    includeSchXsl.setSource(schema.asSource());
-                    start = includeSchXsl;
-                } else
-                    throw new SchemAnonException("Unknown schema type! Only XSD or Schematron are supported!");
-                // start the pipeline
-                start.transform();
-                //System.err.println("DBG: SCH[\n"+destination.getXdmNode().toString()+"\n]SCH");
+                XdmNode xsl = null;
+                String key = null;
+                boolean cached = false;
+                if (cache != null) {
+                    key = SchematronCache.key(getHash(), this.phase);
+                    // a schema without rules is a hit as well
+                    cached = cache.isEmpty(key, this.phase);
+                    if (!cached) {
+                        xsl = cache.get(key, this.phase);
+                        cached = (xsl != null);
+                    }
+                }
+                if (!cached) {
+                    xsl = buildSchematron();
+                    if (cache != null) {
+                        try {
+                            if (xsl != null)
+                                cache.put(key, this.srcSchema.getSystemId(), this.phase, xsl);
+                            else
+                                cache.putEmpty(key, this.srcSchema.getSystemId(), this.phase);
+                        } catch (IOException ex) {
+                            System.err.println("!WRN: couldn't store the Schematron XSLT for source["+this.srcSchema.getSystemId()+"] in the cache: "+ex);
+                        }
+                    }
+                }
+                // Can the rules be evaluated record by record?
+                streamable = (xsl != null && RecordSplitter.isStreamable(xsl));
+                contents = (streamable ? RecordSplitter.getContentContexts(xsl) : Collections.<String>emptySet());
+                // Index the rules by element name
+                if (xsl != null && dispatch)
+                    xsl = dispatch(xsl);
 		// Compile the Schematron rules XSL
-		schemaTron = SaxonUtils.buildTransformer(destination.getXdmNode());
+                if (xsl != null)
+                    schemaTron = SaxonUtils.buildTransformer(xsl);
+                schematronCompiled = true;
 	    } catch (SaxonApiException ex) {
                 System.err.println("!ERR: unexpected exception while compiling Schematron validation for source["+this.srcSchema.getSystemId()+"]: "+ex);
                 ex.printStackTrace(System.err);
 		throw new SchemAnonException(ex);
-	    }
+	    } finally {
+                time(Metrics.GET_SCHEMATRON, start);
+            }
 	}
 	return schemaTron;
     }
+
+    /**
+     * Get a compiled stylesheet of the Schematron pipeline, i.e., just-in-time
+     * compile it. The stylesheets are fixed, so they are shared by all
+     * schemas. There is no lock, so different stylesheets compile in parallel.
+     *
+     * @param xsl The name of the stylesheet
+     * @return The compiled stylesheet
+     * @throws SchemAnonException
+     */
+    private static XsltExecutable getPipeline(String xsl) throws SchemAnonException {
+        XsltExecutable exec = pipeline.get(xsl);
+        if (exec == null) {
+            // another thread might compile the same stylesheet at the same time, the first one is kept
+            exec = SaxonUtils.buildTransformer(SchemAnon.class.getResource("/schematron/"+xsl));
+            XsltExecutable first = pipeline.putIfAbsent(xsl, exec);
+            if (first != null)
+                exec = first;
+        }
+        return exec;
+    }
+
+    /**
+     * Run the Schematron pipeline, which extracts the Schematron rules from
+     * the schema and turns them into an XSLT.
+     *
+     * @return The Schematron XSLT, or null if the schema contains no Schematron rules
+     * @throws SaxonApiException
+     * @throws SchemAnonException
+     */
+    private XdmNode buildSchematron() throws SaxonApiException, SchemAnonException {
+        // Load the Schematron XSL to extract the Schematron rules;
+        XsltTransformer extractSchXsl = getPipeline(this.getType()==Type.RNG ? "ExtractSchFromRNG-2.xsl" : "ExtractSchFromXSD-2.xsl").load();
+        // Load the Schematron XSLs to 'compile' Schematron rules;
+        XsltTransformer includeSchXsl = getPipeline("iso_dsdl_include.xsl").load();
+        XsltTransformer expandSchXsl  = getPipeline("iso_abstract_expand.xsl").load();
+        XsltTransformer compileSchXsl = getPipeline("iso_svrl_for_xslt2.xsl").load();
+        if (this.phase!=null)
+            compileSchXsl.setParameter(new QName("phase"), new XdmAtomicValue(this.phase));
+
+        XdmNode rules = null;
+        if (this.getType()==Type.XSD || this.getType()==Type.RNG) {
+            // Extract the Schematron rules from the schema        
+            XdmDestination extracted = new XdmDestination();
+            extractSchXsl.setDestination(extracted);
+            extractSchXsl.setSource(schema.asSource());
+            extractSchXsl.transform();
+            rules = extracted.getXdmNode();
+        } else if (this.getType()==Type.SCH) {
+            rules = schema;
+        } else
+            throw new SchemAnonException("Unknown schema type! Only XSD, RELAX NG or Schematron are supported!");
+        // Resolve the includes
+        XdmDestination included = new XdmDestination();
+        includeSchXsl.setDestination(included);
+        includeSchXsl.setSource(rules.asSource());
+        includeSchXsl.transform();
+        rules = included.getXdmNode();
+        // No patterns, so no need for Schematron validation
+        SaxonUtils.declareXPathNamespace("sch", "http://purl.oclc.org/dsdl/schematron");
+        if (SaxonUtils.evaluateXPath(rules, "empty(//sch:pattern)").effectiveBooleanValue())
+            return null;
+        // Setup the rest of the pipeline (going backwards)
+        XdmDestination destination = new XdmDestination();
+        compileSchXsl.setDestination(destination);
+        expandSchXsl.setDestination(compileSchXsl);
+        expandSchXsl.setSource(rules.asSource());
+        // start the pipeline
+        expandSchXsl.transform();
+        //System.err.println("DBG: SCH[\n"+destination.getXdmNode().toString()+"\n]SCH");
+        return destination.getXdmNode();
+    }
     
+    /**
+     * Rewrite the Schematron XSLT into a single traversal, which dispatches
+     * on element name.
+     *
+     * @param xsl The Schematron XSLT
+     * @return The rewritten Schematron XSLT
+     * @throws SaxonApiException
+     * @throws SchemAnonException
+     */
+    private XdmNode dispatch(XdmNode xsl) throws SaxonApiException, SchemAnonException {
+        XsltTransformer dispatchXsl = getPipeline("DispatchByElement.xsl").load();
+        XdmDestination destination = new XdmDestination();
+        dispatchXsl.setDestination(destination);
+        dispatchXsl.setSource(xsl.asSource());
+        dispatchXsl.transform();
+        return destination.getXdmNode();
+    }
+
     /**
      * Validation of a loaded document against the Schematron XSLT
      *
@@ -185,25 +529,13 @@ public class SchemAnon {
      */
     public boolean validateSchematron(Source src) throws SchemAnonException, IOException {
         if (msgList == null)
-            msgList = new java.util.ArrayList<Message>();
+            msgList = new MessageList(maxMessages);
         validationReport = null;
-	try {
-	    XsltTransformer schematronXsl = getSchematron().load();
-	    schematronXsl.setSource(src);
-	    XdmDestination destination = new XdmDestination();
-	    schematronXsl.setDestination(destination);
-	    schematronXsl.transform();
-            //System.err.println("DBG: SVRL[\n"+destination.getXdmNode().toString()+"\n]SVRL");
-
-	    validationReport = destination.getXdmNode();
-            
-	    SaxonUtils.declareXPathNamespace("svrl", "http://purl.oclc.org/dsdl/svrl");
-	    return ((net.sf.saxon.value.BooleanValue) SaxonUtils.evaluateXPath(validationReport, "empty(//svrl:failed-assert[(preceding-sibling::svrl:fired-rule)[last()][empty(@role) or @role!='warning']])").evaluateSingle().getUnderlyingValue()).getBooleanValue();
-	} catch (SaxonApiException ex) {
-            System.err.println("!ERR: unexpected exception while doing Schematron validation for source["+src.getSystemId()+"]: "+ex);
-            ex.printStackTrace(System.err);
-	    throw new SchemAnonException(ex);
-	}
+        if (!getValidator().hasSchematron())
+            return true;
+        SVRLHandler svrl = new SVRLHandler(msgList,getValidator().getMaxErrors(),metrics);
+        validationReport = getValidator().validateSchematron(src,svrl);
+        return svrl.getErrors()==0;
     }
 
     public boolean validateSchematron(File file) throws SchemAnonException, IOException {
@@ -211,56 +543,45 @@ public class SchemAnon {
     }
 
     /**
-     * Returns the XSD schema, and loads it just-in-time.
+     * Returns the XSD schema or RELAX NG grammar, and loads it just-in-time.
      *
      * @return An in-memory representation of the grammar
      * @throws Exception
      */
     private synchronized Schema getXSD() throws SchemAnonException, IOException {
 	if (xsdSchema == null) {
+            long start = System.nanoTime();
             System.setProperty("javax.xml.validation.SchemaFactory:http://www.w3.org/2001/XMLSchema/v1.1",
                 "org.apache.xerces.jaxp.validation.XMLSchema11Factory");		
+            System.setProperty("javax.xml.validation.SchemaFactory:"+XMLConstants.RELAXNG_NS_URI,
+                "com.thaiopensource.relaxng.jaxp.XMLSyntaxSchemaFactory");
             try {
-                SchemaFactory sf = SchemaFactory.newInstance("http://www.w3.org/XML/XMLSchema/v1.1");//.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-                sf.setFeature("http://apache.org/xml/features/validation/cta-full-xpath-checking",true);
+                SchemaFactory sf = null;
+                if (this.getType()==Type.RNG) {
+                    // Jing validates streaming, just like Xerces
+                    sf = SchemaFactory.newInstance(XMLConstants.RELAXNG_NS_URI);
+                } else {
+                    sf = SchemaFactory.newInstance("http://www.w3.org/XML/XMLSchema/v1.1");//.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                    sf.setFeature("http://apache.org/xml/features/validation/cta-full-xpath-checking",true);
+                }
                 sf.setErrorHandler(new SimpleErrorHandler(msgList,true));
                 xsdSchema = sf.newSchema(srcSchema);
             } catch(Exception ex) {
                 throw new SchemAnonException(ex);
+            } finally {
+                time(Metrics.GET_XSD, start);
             }
 	}
 	return xsdSchema;
     }
     
     public boolean validateXSD(Source src) throws SchemAnonException, IOException {
-        if (this.getType() != Type.XSD)
+        if (this.getType() == Type.SCH)
             return true;
         
         if (msgList == null)
-            msgList = new java.util.ArrayList<Message>();
-	try {
-            Validator validator = getXSD().newValidator();
-            validator.setErrorHandler(new SimpleErrorHandler(msgList,false));
-            validator.validate(src);
-            for (Message msg:msgList) {
-                if (msg.isError())
-                    return false;
-            }
-        } catch (org.xml.sax.SAXParseException ex) {
-            Message msg = new Message();
-            msg.context = null;
-            msg.test = null;
-            msg.location = ex.getSystemId() + ": line: "+ex.getLineNumber()+" column: "+ex.getColumnNumber();
-            msg.error = true;
-            msg.text = ex.getMessage();
-            msgList.add(msg);
-            return false;
-	} catch (Exception ex) {
-            System.err.println("!ERR: unexpected exception while doing XSD validation for source["+src.getSystemId()+"]: "+ex);
-            ex.printStackTrace(System.err);
-	    throw new SchemAnonException(ex);
-	}
-	return true;
+            msgList = new MessageList(maxMessages);
+        return getValidator().validateXSD(src, msgList);
     }
 
     public boolean validateXSD(File file) throws SchemAnonException, IOException {
@@ -279,29 +600,39 @@ public class SchemAnon {
      */
     public boolean validate(Source src) throws SchemAnonException, IOException {
  	// Initalize
-	msgList = new java.util.ArrayList<Message>();
+	msgList = new MessageList(maxMessages);
 	validationReport = null;
         
        	try {
+            if (singlePass || records != null) {
+                // validate against both XML Schema and Schematron rules, parsing the input only once or record by record
+                ValidationResult result = getValidator().validate(src);
+                msgList = result.getMessages();
+                validationReport = result.getReport();
+                return result.isValid();
+            }
+            long start = System.nanoTime();
             // step 1: validate against XML Schema
-	    if (!this.validateXSD(src))
-		return false;
-	    // step 2: validate Schematron rules
-	    return validateSchematron(src);
+            // step 2: validate Schematron rules
+            boolean valid = this.validateXSD(src) && validateSchematron(src);
+            if (metrics != null)
+                metrics.validated(valid, msgList, System.nanoTime() - start);
+            return valid;
 	} catch (Exception ex) {
-            Message msg = new Message();
-            msg.context = null;
-            msg.test = null;
-            msg.location = null;
-            msg.error = true;
-            msg.text = (ex instanceof SchemAnonException?ex.getCause().getMessage():ex.getMessage());
-            msgList.add(msg);
+            msgList.add(new Message(true, null, null, null, (ex instanceof SchemAnonException && ex.getCause() != null?ex.getCause().getMessage():ex.getMessage())));
             return false;
 	}
 
     }
 
     public boolean validate(File file) throws SchemAnonException, IOException {
+        if (mapped) {
+            // the validator maps the file once for all passes
+            ValidationResult result = getValidator().validate(file);
+            msgList = result.getMessages();
+            validationReport = result.getReport();
+            return result.isValid();
+        }
         return validate(new StreamSource(file));
     }
     
@@ -312,23 +643,7 @@ public class SchemAnon {
      * @throws Exception
      */
     public List<Message> getMessages() throws SchemAnonException {
-	if (validationReport != null) {
-	    try {
-		for (XdmItem assertion : SaxonUtils.evaluateXPath(validationReport, "//svrl:failed-assert")) {
-		    Message msg = new Message();
-		    msg.context = SaxonUtils.evaluateXPath(assertion, "(preceding-sibling::svrl:fired-rule)[last()]/@context").evaluateSingle().getStringValue();
-		    msg.test = ((XdmNode) assertion).getAttributeValue(new QName("test"));
-		    msg.location = ((XdmNode) assertion).getAttributeValue(new QName("location"));
-		    msg.error = !((net.sf.saxon.value.BooleanValue) SaxonUtils.evaluateXPath(assertion, "(preceding-sibling::svrl:fired-rule)[last()]/@role='warning'").evaluateSingle().getUnderlyingValue()).getBooleanValue();
-		    msg.text = assertion.getStringValue();
-		    msgList.add(msg);
-		}
-		validationReport = null;
-	    } catch (SaxonApiException ex) {
-		throw new SchemAnonException(ex);
-	    }
-	}
-	return msgList;
+        return msgList;
     }    
     
     /**
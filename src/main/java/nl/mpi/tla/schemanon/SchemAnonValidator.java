@@ -0,0 +1,729 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import net.sf.saxon.lib.StandardErrorListener;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SAXDestination;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.TeeDestination;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * A compiled schema, i.e., the XSD or RELAX NG grammar and/or the Schematron XSLT.
+ *
+ * A validator is immutable, and therefore thread-safe: each call to
+ * {@link #validate(Source)} returns its own {@link ValidationResult}, so
+ * a single validator can be shared by any number of threads.
+ * Use {@link SchemAnon#getValidator()} to get one.
+ */
+public final class SchemAnonValidator {
+
+    /**
+     * The system id of the schema
+     */
+    private final String systemId;
+
+    /**
+     * The Schematron phase (might be null)
+     */
+    private final String phase;
+
+    /**
+     * The type of the schema
+     */
+    private final SchemAnon.Type type;
+
+    /**
+     * The "immutable in-memory representation of [the XSD or RELAX NG] grammar" (null if the schema is only Schematron).
+     */
+    private final Schema xsdSchema;
+
+    /**
+     * The "immutable, and therefore thread-safe," "compiled form of [the Schematron] stylesheet"
+     * (null if the schema contains no Schematron rules).
+     */
+    private final XsltExecutable schemaTron;
+
+    /**
+     * Is the Schematron XSLT compiled into a single traversal, which dispatches on element name?
+     */
+    private final boolean dispatch;
+
+    /**
+     * Can the Schematron rules be evaluated record by record?
+     */
+    private final boolean streamable;
+
+    /**
+     * The contexts of the Schematron rules that look at the content of their context node
+     */
+    private final Set<String> contents;
+
+    /**
+     * Parse an input document only once for both the XSD and the Schematron validation?
+     */
+    private final boolean singlePass;
+
+    /**
+     * The factory for the parsers used for single pass validation
+     */
+    private static final SAXParserFactory PARSERS = SAXParserFactory.newInstance();
+    static {
+        PARSERS.setNamespaceAware(true);
+    }
+
+    /**
+     * Keep the Schematron SVRL validation report?
+     */
+    private final boolean keepReport;
+
+    /**
+     * Stop the validation when this number of errors is reached (0 means no limit)
+     */
+    private final int maxErrors;
+
+    /**
+     * Map input files into memory?
+     */
+    private final boolean mapped;
+
+    /**
+     * The metrics to record the timings in (might be null)
+     */
+    private final Metrics metrics;
+
+    /**
+     * The name of the record elements to evaluate the Schematron rules on one by one (might be null)
+     */
+    private final QName records;
+
+    /**
+     * Keep at most this number of messages per document, the others are only counted (0 means no limit)
+     */
+    private final int maxMessages;
+
+    SchemAnonValidator(String systemId, String phase, SchemAnon.Type type, Schema xsdSchema, XsltExecutable schemaTron, boolean dispatch, boolean streamable, Set<String> contents) {
+        this.systemId   = systemId;
+        this.phase      = phase;
+        this.type       = type;
+        this.xsdSchema  = xsdSchema;
+        this.schemaTron = schemaTron;
+        this.dispatch   = dispatch;
+        this.streamable = streamable;
+        this.contents   = contents;
+        this.singlePass = false;
+        this.keepReport = true;
+        this.maxErrors  = 0;
+        this.mapped     = false;
+        this.metrics    = null;
+        this.records    = null;
+        this.maxMessages = 0;
+    }
+
+    /**
+     * Create a validator for the same compiled schema, but with other options.
+     */
+    private SchemAnonValidator(SchemAnonValidator validator, boolean singlePass, boolean keepReport, int maxErrors, boolean mapped, Metrics metrics, QName records, int maxMessages) {
+        this.systemId   = validator.systemId;
+        this.phase      = validator.phase;
+        this.type       = validator.type;
+        this.xsdSchema  = validator.xsdSchema;
+        this.schemaTron = validator.schemaTron;
+        this.dispatch   = validator.dispatch;
+        this.streamable = validator.streamable;
+        this.contents   = validator.contents;
+        this.singlePass = singlePass;
+        this.keepReport = keepReport;
+        this.maxErrors  = maxErrors;
+        this.mapped     = mapped;
+        this.metrics    = metrics;
+        this.records    = records;
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Get a validator for the same compiled schema, which parses an input
+     * document only once: the parser feeds the XSD validator and the Saxon
+     * tree, used for the Schematron validation, at the same time. This also
+     * allows validation of a source that can only be read once, e.g., an
+     * InputStream.
+     *
+     * @param singlePass Parse the input document only once?
+     * @return The validator
+     */
+    public SchemAnonValidator withSinglePass(boolean singlePass) {
+        if (this.singlePass == singlePass)
+            return this;
+        return new SchemAnonValidator(this, singlePass, keepReport, maxErrors, mapped, metrics, records, maxMessages);
+    }
+
+    /**
+     * Get a validator for the same compiled schema, which does or doesn't
+     * keep the Schematron SVRL validation report. The messages are always
+     * extracted while the report is generated, so if the report isn't needed
+     * it's never materialised.
+     *
+     * @param keepReport Keep the report?
+     * @return The validator
+     */
+    public SchemAnonValidator withReport(boolean keepReport) {
+        if (this.keepReport == keepReport)
+            return this;
+        return new SchemAnonValidator(this, singlePass, keepReport, maxErrors, mapped, metrics, records, maxMessages);
+    }
+
+    /**
+     * Get a validator for the same compiled schema, which stops as soon as
+     * a number of errors has been reached. Parsing, XSD validation and the
+     * Schematron transformation are all aborted, so for a yes/no answer a
+     * maximum of 1 error is enough.
+     *
+     * @param maxErrors The maximum number of errors (0 means no limit)
+     * @return The validator
+     */
+    public SchemAnonValidator withMaxErrors(int maxErrors) {
+        if (maxErrors < 0)
+            throw new IllegalArgumentException("The maximum number of errors can't be negative!");
+        if (this.maxErrors == maxErrors)
+            return this;
+        return new SchemAnonValidator(this, singlePass, keepReport, maxErrors, mapped, metrics, records, maxMessages);
+    }
+
+    /**
+     * Get a validator for the same compiled schema, which maps an input file
+     * into memory once, and lets all parsing passes read the mapped pages.
+     * A gzip compressed input file is decompressed transparently.
+     *
+     * @param mapped Map input files into memory?
+     * @return The validator
+     */
+    public SchemAnonValidator withMapping(boolean mapped) {
+        if (this.mapped == mapped)
+            return this;
+        return new SchemAnonValidator(this, singlePass, keepReport, maxErrors, mapped, metrics, records, maxMessages);
+    }
+
+    /**
+     * Get a validator for the same compiled schema, which records the
+     * timings of the validation steps, and of the Schematron rules, in the
+     * metrics.
+     *
+     * @param metrics The metrics (null to disable)
+     * @return The validator
+     */
+    public SchemAnonValidator withMetrics(Metrics metrics) {
+        if (this.metrics == metrics)
+            return this;
+        return new SchemAnonValidator(this, singlePass, keepReport, maxErrors, mapped, metrics, records, maxMessages);
+    }
+
+    /**
+     * Get a validator for the same compiled schema, which evaluates the
+     * Schematron rules on the records of a document one by one, while the
+     * document is being parsed, instead of on the whole document loaded into
+     * memory. The elements outside the records are evaluated at the end, but
+     * without the records. This only applies when the rules only look
+     * downward from their context, and the rules that look at the content of
+     * their context are on the records, see {@link #isStreamable()};
+     * otherwise the whole document is still loaded. The SVRL report isn't kept.
+     *
+     * @param records The name of the record elements in Clark notation, i.e., {uri}local (null to load the whole document)
+     * @return The validator
+     */
+    public SchemAnonValidator withRecords(String records) {
+        QName name = (records != null ? QName.fromClarkName(records) : null);
+        if (this.records == null ? name == null : this.records.equals(name))
+            return this;
+        return new SchemAnonValidator(this, singlePass, keepReport, maxErrors, mapped, metrics, name, maxMessages);
+    }
+
+    /**
+     * Get a validator for the same compiled schema, which keeps at most a
+     * number of messages per document. The messages beyond the maximum are
+     * still counted, and summarised in a last warning, but not kept. Unlike
+     * {@link #withMaxErrors(int)} the validation isn't stopped.
+     *
+     * @param maxMessages The maximum number of messages (0 means no limit)
+     * @return The validator
+     */
+    public SchemAnonValidator withMaxMessages(int maxMessages) {
+        if (maxMessages < 0)
+            throw new IllegalArgumentException("The maximum number of messages can't be negative!");
+        if (this.maxMessages == maxMessages)
+            return this;
+        return new SchemAnonValidator(this, singlePass, keepReport, maxErrors, mapped, metrics, records, maxMessages);
+    }
+
+    /**
+     * @return the maximum number of messages kept per document (0 means no limit)
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * @return the name of the record elements in Clark notation (might be null)
+     */
+    public String getRecords() {
+        return (records != null ? records.getClarkName() : null);
+    }
+
+    /**
+     * @return can the Schematron rules be evaluated record by record, i.e., do they only look downward from their context, and, as the records are left out of the spine, do only the rules on the records look at the content of their context?
+     */
+    public boolean isStreamable() {
+        return streamable && (records == null || RecordSplitter.isRecordContent(contents, records));
+    }
+
+    /**
+     * @return the metrics the timings are recorded in (might be null)
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void time(String operation, long start) {
+        if (metrics != null)
+            metrics.time(operation, start);
+    }
+
+    /**
+     * @return the maximum number of errors (0 means no limit)
+     */
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * @return does the validator keep the Schematron SVRL validation report?
+     */
+    public boolean isKeepingReport() {
+        return keepReport;
+    }
+
+    /**
+     * @return does the schema contain Schematron rules?
+     */
+    public boolean hasSchematron() {
+        return schemaTron != null;
+    }
+
+    /**
+     * @return does the validator map input files into memory?
+     */
+    public boolean isMapping() {
+        return mapped;
+    }
+
+    /**
+     * @return does the validator parse an input document only once?
+     */
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    /**
+     * @return the system id of the schema
+     */
+    public String getSystemId() {
+        return systemId;
+    }
+
+    /**
+     * @return is the Schematron XSLT compiled into a single traversal, which dispatches on element name?
+     */
+    public boolean isDispatch() {
+        return dispatch;
+    }
+
+    /**
+     * @return the Schematron phase (might be null)
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the type of the schema
+     */
+    public SchemAnon.Type getType() {
+        return type;
+    }
+
+    /**
+     * Validation of a document against the XSD, any messages are added to the list.
+     *
+     * @param src The input document
+     * @param msgList The list of messages
+     * @return Is the document valid or not?
+     * @throws SchemAnonException
+     */
+    boolean validateXSD(Source src, List<Message> msgList) throws SchemAnonException {
+        if (this.xsdSchema == null)
+            return true;
+
+        long start = System.nanoTime();
+	try {
+            Validator validator = xsdSchema.newValidator();
+            validator.setErrorHandler(new SimpleErrorHandler(msgList,false,maxErrors));
+            validator.validate(src);
+            if (MessageList.errors(msgList) > 0)
+                return false;
+        } catch (ErrorLimitException ex) {
+            return false;
+        } catch (org.xml.sax.SAXParseException ex) {
+            addMessage(ex, msgList);
+            return false;
+	} catch (Exception ex) {
+            System.err.println("!ERR: unexpected exception while doing XSD validation for source["+src.getSystemId()+"]: "+ex);
+            ex.printStackTrace(System.err);
+	    throw new SchemAnonException(ex);
+	} finally {
+            time(Metrics.VALIDATE_XSD, start);
+        }
+	return true;
+    }
+
+    private static void addMessage(SAXParseException ex, List<Message> msgList) {
+        msgList.add(new Message(true, ex));
+    }
+
+    /**
+     * Parse a document once, validate it against the XSD while parsing and
+     * load it into a Saxon tree.
+     *
+     * @param src The input document
+     * @param msgList The list of messages
+     * @return The loaded document, or null if the document isn't valid
+     * @throws SchemAnonException
+     */
+    XdmNode validateXSDAndLoad(Source src, List<Message> msgList) throws SchemAnonException {
+        long start = System.nanoTime();
+        try {
+            InputSource input = SAXSource.sourceToInputSource(src);
+            if (input == null)
+                throw new SchemAnonException("Single pass validation needs a stream or SAX source, not a "+src.getClass().getName()+"!");
+            XMLReader parser = null;
+            if (src instanceof SAXSource && ((SAXSource)src).getXMLReader() != null)
+                parser = ((SAXSource)src).getXMLReader();
+            else
+                parser = PARSERS.newSAXParser().getXMLReader();
+            ValidatingXMLFilter filter = new ValidatingXMLFilter(parser, xsdSchema.newValidatorHandler(), new SimpleErrorHandler(msgList,false,maxErrors));
+            XdmNode doc = SaxonUtils.buildDocument(new SAXSource(filter, input));
+            if (MessageList.errors(msgList) > 0)
+                return null;
+            return doc;
+        } catch (SaxonApiException ex) {
+            if (ErrorLimitException.find(ex) != null)
+                return null;
+            // a fatal parse error has already been reported by the error handler
+            for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof SAXParseException) {
+                    addMessage((SAXParseException)cause, msgList);
+                    return null;
+                }
+            }
+            System.err.println("!ERR: unexpected exception while doing XSD validation for source["+src.getSystemId()+"]: "+ex);
+            ex.printStackTrace(System.err);
+            throw new SchemAnonException(ex);
+        } catch (ParserConfigurationException | SAXException ex) {
+            System.err.println("!ERR: unexpected exception while doing XSD validation for source["+src.getSystemId()+"]: "+ex);
+            ex.printStackTrace(System.err);
+            throw new SchemAnonException(ex);
+        } finally {
+            time(Metrics.VALIDATE_XSD, start);
+        }
+    }
+
+    /**
+     * Validation of a loaded document against the Schematron XSLT.
+     *
+     * @param doc The loaded document
+     * @param svrl The handler that turns the failed assertions into messages
+     * @return The Schematron SVRL validation report, or null if the report isn't kept or the maximum number of errors was reached
+     * @throws SchemAnonException
+     */
+    XdmNode validateSchematron(XdmNode doc, SVRLHandler svrl) throws SchemAnonException {
+        long start = System.nanoTime();
+	try {
+	    XsltTransformer schematronXsl = schemaTron.load();
+	    schematronXsl.setInitialContextNode(doc);
+            return transform(schematronXsl, svrl);
+	} catch (SaxonApiException ex) {
+            if (ErrorLimitException.find(ex) != null)
+                return null;
+            System.err.println("!ERR: unexpected exception while doing Schematron validation for source["+doc.getBaseURI()+"]: "+ex);
+            ex.printStackTrace(System.err);
+	    throw new SchemAnonException(ex);
+	} finally {
+            time(Metrics.VALIDATE_SCHEMATRON, start);
+        }
+    }
+
+    /**
+     * Validation of a document against the Schematron XSLT.
+     *
+     * @param src The input document
+     * @param svrl The handler that turns the failed assertions into messages
+     * @return The Schematron SVRL validation report, or null if the report isn't kept or the maximum number of errors was reached
+     * @throws SchemAnonException
+     */
+    XdmNode validateSchematron(Source src, SVRLHandler svrl) throws SchemAnonException {
+        long start = System.nanoTime();
+	try {
+	    XsltTransformer schematronXsl = schemaTron.load();
+	    schematronXsl.setSource(src);
+            return transform(schematronXsl, svrl);
+	} catch (SaxonApiException ex) {
+            if (ErrorLimitException.find(ex) != null)
+                return null;
+            System.err.println("!ERR: unexpected exception while doing Schematron validation for source["+src.getSystemId()+"]: "+ex);
+            ex.printStackTrace(System.err);
+	    throw new SchemAnonException(ex);
+	} finally {
+            time(Metrics.VALIDATE_SCHEMATRON, start);
+        }
+    }
+
+    /**
+     * Validation of the records of a document, one by one, against the
+     * Schematron XSLT, while the document is being parsed and validated
+     * against the XSD. So the document is parsed only once, and a source that
+     * can only be read once is supported. Once the XSD validation found an
+     * error the remaining records aren't validated against the Schematron
+     * XSLT anymore. The locations of the messages are those in the whole
+     * document.
+     *
+     * @param src The input document
+     * @param svrl The handler that turns the failed assertions into messages
+     * @param msgList The list of Schematron messages
+     * @param xsdList The list of parse and XSD messages
+     * @return Is the document well-formed?
+     * @throws SchemAnonException
+     */
+    boolean validateRecords(Source src, final SVRLHandler svrl, final List<Message> msgList, final List<Message> xsdList) throws SchemAnonException {
+        long start = System.nanoTime();
+        try {
+            InputSource input = SAXSource.sourceToInputSource(src);
+            if (input == null)
+                throw new SchemAnonException("Record by record validation needs a stream or SAX source, not a "+src.getClass().getName()+"!");
+            XMLReader parser = null;
+            if (src instanceof SAXSource && ((SAXSource)src).getXMLReader() != null)
+                parser = ((SAXSource)src).getXMLReader();
+            else
+                parser = PARSERS.newSAXParser().getXMLReader();
+            RecordSplitter splitter = new RecordSplitter(records, src.getSystemId()) {
+                @Override
+                void tree(XdmNode doc, String location) throws SAXException {
+                    if (MessageList.errors(xsdList) > 0)
+                        return;
+                    int first = msgList.size();
+                    try {
+                        // a fresh transformer per record, so the previous records can be collected
+                        XsltTransformer schematronXsl = schemaTron.load();
+                        if (maxErrors > 0)
+                            schematronXsl.setErrorListener(new SchematronErrorListener());
+                        schematronXsl.setInitialContextNode(doc);
+                        schematronXsl.setDestination(new SAXDestination(svrl));
+                        schematronXsl.transform();
+                    } catch (SaxonApiException ex) {
+                        ErrorLimitException limit = ErrorLimitException.find(ex);
+                        if (limit != null)
+                            throw limit;
+                        throw new SAXException(ex);
+                    } finally {
+                        if (location != null) {
+                            // the record is the root of its own tree
+                            String root = RecordSplitter.step(records.getNamespaceURI(), records.getLocalName(), 1);
+                            for (Message msg : msgList.subList(first, msgList.size())) {
+                                if (msg.location != null && msg.location.startsWith(root))
+                                    msg.location = location + msg.location.substring(root.length());
+                            }
+                        }
+                    }
+                }
+            };
+            XMLReader reader = parser;
+            if (xsdSchema != null) {
+                // the filter also reports the parse errors
+                reader = new ValidatingXMLFilter(parser, xsdSchema.newValidatorHandler(), new SimpleErrorHandler(xsdList,false,maxErrors));
+            } else
+                parser.setErrorHandler(splitter);
+            reader.setContentHandler(splitter);
+            reader.setProperty("http://xml.org/sax/properties/lexical-handler", splitter);
+            reader.parse(input);
+        } catch (SAXParseException ex) {
+            if (xsdSchema == null)
+                addMessage(ex, xsdList);
+            return false;
+        } catch (ParserConfigurationException | SAXException | IOException ex) {
+            if (ErrorLimitException.find(ex) != null)
+                return true;
+            System.err.println("!ERR: unexpected exception while doing Schematron validation for source["+src.getSystemId()+"]: "+ex);
+            ex.printStackTrace(System.err);
+            throw new SchemAnonException(ex);
+        } finally {
+            time(Metrics.VALIDATE_SCHEMATRON, start);
+        }
+        return true;
+    }
+
+    /**
+     * Reports errors of the Schematron transformation in the standard way,
+     * except when the transformation was aborted on purpose as the maximum
+     * number of errors was reached.
+     */
+    private static class SchematronErrorListener implements ErrorListener {
+
+        private final ErrorListener standard = new StandardErrorListener();
+
+        @Override
+        public void warning(TransformerException ex) throws TransformerException {
+            standard.warning(ex);
+        }
+
+        @Override
+        public void error(TransformerException ex) throws TransformerException {
+            if (ErrorLimitException.find(ex) == null)
+                standard.error(ex);
+        }
+
+        @Override
+        public void fatalError(TransformerException ex) throws TransformerException {
+            if (ErrorLimitException.find(ex) == null)
+                standard.fatalError(ex);
+        }
+    }
+
+    private XdmNode transform(XsltTransformer schematronXsl, SVRLHandler svrl) throws SaxonApiException {
+        if (maxErrors > 0)
+            schematronXsl.setErrorListener(new SchematronErrorListener());
+        if (keepReport) {
+            XdmDestination destination = new XdmDestination();
+            schematronXsl.setDestination(new TeeDestination(destination, new SAXDestination(svrl)));
+            schematronXsl.transform();
+            //System.err.println("DBG: SVRL[\n"+destination.getXdmNode().toString()+"\n]SVRL");
+            return destination.getXdmNode();
+        }
+        schematronXsl.setDestination(new SAXDestination(svrl));
+        schematronXsl.transform();
+        return null;
+    }
+
+    /**
+     * Validation of a document, first against the XSD and then against the
+     * Schematron rules. If the schema contains no Schematron rules the
+     * document is only streamed through the XSD validator, without loading
+     * it into memory.
+     *
+     * Notice that even if a document is valid the result might contain warning messages.
+     *
+     * @param src The input document
+     * @return The result of this validation
+     */
+    public ValidationResult validate(Source src) {
+        return validate(src, null);
+    }
+
+    /**
+     * Validation of a document, which is read from the mapped input when
+     * given, so every pass can get a new source.
+     */
+    private ValidationResult validate(Source src, MappedInput input) {
+        long start = System.nanoTime();
+        ValidationResult result = check(src, input);
+        if (metrics != null)
+            metrics.validated(result.isValid(), result.getMessages(), System.nanoTime() - start);
+        return result;
+    }
+
+    private ValidationResult check(Source src, MappedInput input) {
+        MessageList msgList = new MessageList(maxMessages);
+        try {
+            if (schemaTron == null) {
+                // no Schematron rules, so a streaming XSD validation suffices
+                return new ValidationResult(this.validateXSD(src,msgList),msgList,null);
+            }
+            if (records != null && isStreamable()) {
+                // validate against the grammar and the Schematron rules record by record, while parsing the document once
+                MessageList xsdList = new MessageList(maxMessages);
+                SVRLHandler svrl = new SVRLHandler(msgList,maxErrors,metrics);
+                boolean wellFormed = validateRecords(src,svrl,msgList,xsdList);
+                if (xsdList.getErrors() > 0)
+                    return new ValidationResult(false,xsdList,null);
+                // the warnings of the grammar come first, as in the other paths
+                xsdList.append(msgList);
+                return new ValidationResult(wellFormed && svrl.getErrors()==0,xsdList,null);
+            }
+            if (singlePass && this.xsdSchema != null) {
+                // step 1: validate against XML Schema while loading the document
+                XdmNode doc = validateXSDAndLoad(src,msgList);
+                if (doc == null)
+                    return new ValidationResult(false,msgList,null);
+                // step 2: validate Schematron rules on the loaded document
+                SVRLHandler svrl = new SVRLHandler(msgList,maxErrors,metrics);
+                XdmNode report = validateSchematron(doc,svrl);
+                return new ValidationResult(svrl.getErrors()==0,msgList,report);
+            }
+            // step 1: validate against XML Schema
+            if (!this.validateXSD(src,msgList))
+                return new ValidationResult(false,msgList,null);
+            // step 2: validate Schematron rules
+            SVRLHandler svrl = new SVRLHandler(msgList,maxErrors,metrics);
+            XdmNode report = validateSchematron((input != null ? input.newSource() : src),svrl);
+            return new ValidationResult(svrl.getErrors()==0,msgList,report);
+        } catch (Exception ex) {
+            msgList.add(new Message(true, null, null, null, (ex instanceof SchemAnonException && ex.getCause() != null?ex.getCause().getMessage():ex.getMessage())));
+            return new ValidationResult(false,msgList,null,false);
+        }
+    }
+
+    public ValidationResult validate(File file) {
+        if (mapped) {
+            try {
+                MappedInput input = MappedInput.map(file);
+                return validate(input.newSource(), input);
+            } catch (IOException ex) {
+                List<Message> msgList = new MessageList(maxMessages);
+                msgList.add(new Message(true, null, null, null, ex.getMessage()));
+                return new ValidationResult(false,msgList,null,false);
+            }
+        }
+        return validate(new StreamSource(file));
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A registry of compiled schemas, keyed by the schema URL and the phase.
+ *
+ * The registry holds at most a fixed number of schemas, when it's full the
+ * least recently used schema is evicted. Optionally a schema is
+ * revalidated when it has been in the registry longer than a time-to-live:
+ * when the content of the schema (or anything it includes) has changed it's
+ * recompiled.
+ */
+public class SchemaRegistry {
+
+    /**
+     * The default maximum number of schemas in the registry
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The shared registry
+     */
+    private static final SchemaRegistry REGISTRY = new SchemaRegistry(DEFAULT_CAPACITY, 0);
+
+    /**
+     * The maximum number of schemas in the registry
+     */
+    private final int capacity;
+
+    /**
+     * The time-to-live in milliseconds before a schema is revalidated (0 means never)
+     */
+    private final long ttl;
+
+    /**
+     * The persistent cache for the generated Schematron XSLT (might be null)
+     */
+    private volatile SchematronCache cache = null;
+
+    /**
+     * Compile the Schematron rules into a single traversal, which dispatches on element name?
+     */
+    private volatile boolean dispatch = false;
+
+    /**
+     * The entries in least recently used order
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * A compiled schema, which is compiled by the first thread that needs it.
+     */
+    private static class Entry {
+        final URL url;
+        final String phase;
+        SchemAnonValidator validator = null;
+        String hash = null;
+        long checked = 0;
+
+        Entry(URL url, String phase) {
+            this.url = url;
+            this.phase = phase;
+        }
+    }
+
+    public SchemaRegistry(int capacity, long ttl) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity of a schema registry should be at least 1!");
+        this.capacity = capacity;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > SchemaRegistry.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the process-wide registry.
+     *
+     * @return The shared registry
+     */
+    public static SchemaRegistry getRegistry() {
+        return REGISTRY;
+    }
+
+    /**
+     * Use a persistent cache for the Schematron XSLT generated for newly compiled schemas.
+     *
+     * @param cache The cache (null to disable caching)
+     */
+    public void setSchematronCache(SchematronCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Compile the Schematron rules of newly compiled schemas into a single
+     * traversal, which dispatches on element name.
+     *
+     * @param dispatch Dispatch on element name?
+     * @see SchemAnon#setDispatch(boolean)
+     */
+    public void setDispatch(boolean dispatch) {
+        this.dispatch = dispatch;
+    }
+
+    /**
+     * Get the compiled schema, compile it if it's not in the registry yet.
+     *
+     * @param schemaURL The URL of the schema
+     * @param phase The Schematron phase (might be null)
+     * @return The validator
+     * @throws SchemAnonException
+     * @throws IOException 
+     */
+    public SchemAnonValidator getValidator(URL schemaURL, String phase) throws SchemAnonException, IOException {
+        String key = schemaURL.toExternalForm() + (phase != null ? "#" + phase : "");
+        Entry entry = null;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(schemaURL, phase);
+                entries.put(key, entry);
+            }
+        }
+        // compile (or revalidate) outside of the registry lock, so other schemas remain available
+        synchronized (entry) {
+            if (entry.validator == null) {
+                misses.incrementAndGet();
+                try {
+                    compile(entry, newSchemAnon(schemaURL, phase));
+                } catch (SchemAnonException | IOException | RuntimeException ex) {
+                    remove(key, entry);
+                    throw ex;
+                }
+            } else {
+                hits.incrementAndGet();
+                if (ttl > 0 && System.currentTimeMillis() - entry.checked > ttl)
+                    revalidate(entry);
+            }
+            return entry.validator;
+        }
+    }
+
+    /**
+     * Compile a schema, if it's not in the registry yet, and validate a
+     * trivial document, so the first real validation doesn't have to load
+     * and initialize the validation machinery.
+     *
+     * @param schemaURL The URL of the schema
+     * @param phase The Schematron phase (might be null)
+     * @throws SchemAnonException
+     * @throws IOException 
+     */
+    public void warmup(URL schemaURL, String phase) throws SchemAnonException, IOException {
+        // the outcome doesn't matter, only that all the code paths have been taken
+        getValidator(schemaURL, phase).withReport(false).validate(new StreamSource(new StringReader("<warmup/>")));
+    }
+
+    private SchemAnon newSchemAnon(URL schemaURL, String phase) {
+        SchemAnon tron = new SchemAnon(schemaURL, phase);
+        if (cache != null)
+            tron.setSchematronCache(cache);
+        tron.setDispatch(dispatch);
+        return tron;
+    }
+
+    private void compile(Entry entry, SchemAnon tron) throws SchemAnonException, IOException {
+        entry.validator = tron.getValidator();
+        entry.hash = (ttl > 0 ? tron.getHash() : null);
+        entry.checked = System.currentTimeMillis();
+    }
+
+    /**
+     * Reload the schema, and recompile it when its content has changed. If
+     * the schema can't be reloaded the current compiled schema is kept.
+     */
+    private void revalidate(Entry entry) {
+        revalidations.incrementAndGet();
+        try {
+            SchemAnon tron = newSchemAnon(entry.url, entry.phase);
+            if (tron.getHash().equals(entry.hash))
+                entry.checked = System.currentTimeMillis();
+            else
+                compile(entry, tron);
+        } catch (SchemAnonException | IOException ex) {
+            System.err.println("!WRN: couldn't revalidate schema["+entry.url+"], keeping the compiled version: "+ex);
+            entry.checked = System.currentTimeMillis();
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        synchronized (entries) {
+            if (entries.get(key) == entry)
+                entries.remove(key);
+        }
+    }
+
+    /**
+     * Remove all schemas from the registry.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of schemas in the registry
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the maximum number of schemas in the registry
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the time-to-live in milliseconds before a schema is revalidated (0 means never)
+     */
+    public long getTimeToLive() {
+        return ttl;
+    }
+
+    /**
+     * @return the number of requests for a schema that was already compiled
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests for a schema that had to be compiled
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of schemas evicted from the registry
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of times a schema was revalidated
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * A persistent cache of the Schematron XSLTs generated from schemas.
+ *
+ * An entry is keyed by a content hash of the schema, the schemas and
+ * Schematron rules it includes, the phase and the SchemAnon version. The
+ * generated XSLT is stored as {@code <key>.xsl}, and the schema and phase
+ * it was built for in {@code <key>.properties}. For a schema without
+ * Schematron rules only the properties are stored, which record that there
+ * are no rules, so the extraction isn't repeated either.
+ */
+public class SchematronCache {
+
+    /**
+     * The cache directory
+     */
+    private final File dir;
+
+    /**
+     * The value of the rules property of an entry for a schema without Schematron rules.
+     */
+    private static final String NONE = "none";
+
+    public SchematronCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * The version of SchemAnon (lazily determined).
+     */
+    private static volatile String version = null;
+
+    /**
+     * The version of SchemAnon, as the generated XSLT depends on the
+     * Schematron pipeline bundled with it. A development build has no
+     * version, but might change from run to run, so it's identified by a
+     * hash of its classes and resources instead.
+     */
+    static String getVersion() {
+        if (version == null) {
+            String v = SchemAnon.class.getPackage().getImplementationVersion();
+            if (v == null) {
+                try {
+                    v = "dev-" + hashBuild(new File(SchemAnon.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+                } catch (Exception ex) {
+                    // without an identity nothing cached by an earlier run can be trusted
+                    System.err.println("!WRN: couldn't identify this development build, so cached XSLTs and results are only reused within this run: "+ex);
+                    v = "dev-" + UUID.randomUUID();
+                }
+            }
+            version = v;
+        }
+        return version;
+    }
+
+    /**
+     * Hash a jar, or a directory of classes and resources.
+     */
+    private static String hashBuild(File code) throws SchemAnonException, IOException {
+        MessageDigest digest = newDigest();
+        if (code.isDirectory()) {
+            final List<Path> files = new ArrayList<Path>();
+            final Path root = code.toPath();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile())
+                        files.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(files);
+            for (Path file : files) {
+                digest.update(root.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)0);
+                digest.update(Files.readAllBytes(file));
+            }
+        } else {
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = new FileInputStream(code)) {
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    digest.update(buffer, 0, n);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Compute the content hash of a schema and all the schemas and
+     * Schematron rules it includes (recursively).
+     *
+     * @param schema The loaded schema
+     * @return The hex encoded SHA-256 hash
+     * @throws SchemAnonException
+     */
+    public static String hash(XdmNode schema) throws SchemAnonException {
+        MessageDigest digest = newDigest();
+        digest(digest, schema, new HashSet<String>());
+        return hex(digest.digest());
+    }
+
+    private static void digest(MessageDigest digest, XdmNode schema, Set<String> seen) throws SchemAnonException {
+        digest.update(schema.toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            SaxonUtils.declareXPathNamespace("sch", "http://purl.oclc.org/dsdl/schematron");
+            SaxonUtils.declareXPathNamespace("xs", "http://www.w3.org/2001/XMLSchema");
+            SaxonUtils.declareXPathNamespace("rng", "http://relaxng.org/ns/structure/1.0");
+            for (XdmItem ref : SaxonUtils.evaluateXPath(schema, "/xs:schema/(xs:include|xs:import|xs:redefine|xs:override)/@schemaLocation|//(rng:include|rng:externalRef)/@href|//(sch:include|sch:extends)/@href")) {
+                XdmNode attr = (XdmNode)ref;
+                URI base = attr.getBaseURI();
+                String loc = (base != null ? base.resolve(attr.getStringValue().trim()).toString() : attr.getStringValue().trim());
+                if (seen.add(loc)) {
+                    digest.update(loc.getBytes(StandardCharsets.UTF_8));
+                    digest(digest, SaxonUtils.buildDocument(new StreamSource(loc)), seen);
+                }
+            }
+        } catch (SaxonApiException | IllegalArgumentException ex) {
+            throw new SchemAnonException("Couldn't hash the includes of schema["+schema.getBaseURI()+"]", ex);
+        }
+    }
+
+    /**
+     * Get the key of a cache entry.
+     *
+     * @param hash The content hash of the schema
+     * @param phase The Schematron phase (might be null)
+     * @return The key
+     * @throws SchemAnonException
+     */
+    public static String key(String hash, String phase) throws SchemAnonException {
+        MessageDigest digest = newDigest();
+        digest.update(hash.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update((phase != null ? phase : "#ALL").getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+        digest.update(getVersion().getBytes(StandardCharsets.UTF_8));
+        return hex(digest.digest());
+    }
+
+    /**
+     * Load the generated Schematron XSLT from the cache.
+     *
+     * @param key The key of the entry
+     * @param phase The Schematron phase (might be null)
+     * @return The Schematron XSLT, or null if there is no (valid) entry
+     */
+    public XdmNode get(String key, String phase) {
+        File xsl = new File(dir, key + ".xsl");
+        if (!xsl.isFile())
+            return null;
+        Properties info = load(key, phase);
+        if (info == null || NONE.equals(info.getProperty("rules")))
+            return null;
+        try {
+            return SaxonUtils.buildDocument(new StreamSource(xsl));
+        } catch (SaxonApiException ex) {
+            System.err.println("!WRN: ignoring invalid Schematron cache entry["+xsl+"]: "+ex);
+            return null;
+        }
+    }
+
+    /**
+     * Does the cache record that the schema contains no Schematron rules?
+     *
+     * @param key The key of the entry
+     * @param phase The Schematron phase (might be null)
+     * @return true if there is an entry without rules
+     */
+    public boolean isEmpty(String key, String phase) {
+        Properties info = load(key, phase);
+        return (info != null && NONE.equals(info.getProperty("rules")));
+    }
+
+    /**
+     * Load the properties of an entry for the phase.
+     */
+    private Properties load(String key, String phase) {
+        File props = new File(dir, key + ".properties");
+        if (!props.isFile())
+            return null;
+        try {
+            Properties info = new Properties();
+            try (InputStream in = new FileInputStream(props)) {
+                info.load(in);
+            }
+            if (!(phase != null ? phase : "").equals(info.getProperty("phase", "")))
+                return null;
+            return info;
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("!WRN: ignoring invalid Schematron cache entry["+props+"]: "+ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store the generated Schematron XSLT in the cache.
+     *
+     * @param key The key of the entry
+     * @param systemId The system id of the schema
+     * @param phase The Schematron phase (might be null)
+     * @param schematron The generated Schematron XSLT
+     * @throws IOException
+     */
+    public void put(String key, String systemId, String phase, XdmNode schematron) throws IOException {
+        Properties info = newInfo(systemId, phase);
+        // write to temporary files first, so concurrent runs never see a partial entry
+        File xsl = File.createTempFile(key, ".xsl", dir);
+        File props = File.createTempFile(key, ".properties", dir);
+        try {
+            try (OutputStream out = new FileOutputStream(props)) {
+                info.store(out, "SchemAnon Schematron cache entry");
+            }
+            SaxonUtils.save(schematron.asSource(), xsl);
+            Files.move(props.toPath(), new File(dir, key + ".properties").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(xsl.toPath(), new File(dir, key + ".xsl").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (SaxonApiException ex) {
+            throw new IOException(ex);
+        } finally {
+            Files.deleteIfExists(xsl.toPath());
+            Files.deleteIfExists(props.toPath());
+        }
+    }
+
+    /**
+     * Record in the cache that the schema contains no Schematron rules.
+     *
+     * @param key The key of the entry
+     * @param systemId The system id of the schema
+     * @param phase The Schematron phase (might be null)
+     * @throws IOException
+     */
+    public void putEmpty(String key, String systemId, String phase) throws IOException {
+        Properties info = newInfo(systemId, phase);
+        info.setProperty("rules", NONE);
+        File props = File.createTempFile(key, ".properties", dir);
+        try {
+            try (OutputStream out = new FileOutputStream(props)) {
+                info.store(out, "SchemAnon Schematron cache entry");
+            }
+            Files.move(props.toPath(), new File(dir, key + ".properties").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(props.toPath());
+        }
+    }
+
+    /**
+     * The properties of a new entry.
+     */
+    private Properties newInfo(String systemId, String phase) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Couldn't create the Schematron cache directory["+dir+"]");
+        Properties info = new Properties();
+        if (systemId != null)
+            info.setProperty("schema", systemId);
+        info.setProperty("phase", (phase != null ? phase : ""));
+        info.setProperty("version", getVersion());
+        return info;
+    }
+
+    private static MessageDigest newDigest() throws SchemAnonException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new SchemAnonException(ex);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
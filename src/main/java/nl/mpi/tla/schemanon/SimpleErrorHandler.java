@@ -28,6 +28,8 @@ public class SimpleErrorHandler implements ErrorHandler {
 
     private List<Message> msgList;
     private boolean	failOnError = false;
+    private int maxErrors = 0;
+    private int errors = 0;
 
     public SimpleErrorHandler(List<Message> msgList) {
         this.msgList = msgList;
@@ -38,6 +40,16 @@ public class SimpleErrorHandler implements ErrorHandler {
         this.failOnError = failOnError;
     }
 
+    /**
+     * @param msgList The list to add the messages to
+     * @param failOnError Throw the first error?
+     * @param maxErrors Abort with an ErrorLimitException when this number of errors is reached (0 means no limit)
+     */
+    public SimpleErrorHandler(List<Message> msgList, boolean failOnError, int maxErrors) {
+        this(msgList, failOnError);
+        this.maxErrors = maxErrors;
+    }
+
     public void warning(SAXParseException e) throws SAXException {
         addException(false, e);
     }
@@ -45,6 +57,11 @@ public class SimpleErrorHandler implements ErrorHandler {
     public void error(SAXParseException e) throws SAXException {
         addException(true, e);
         if (failOnError) throw e;
+        if (maxErrors > 0 && ++errors >= maxErrors) {
+            ErrorLimitException limit = new ErrorLimitException(maxErrors);
+            limit.addMessage(msgList);
+            throw limit;
+        }
     }
 
     public void fatalError(SAXParseException e) throws SAXException {
@@ -53,13 +70,7 @@ public class SimpleErrorHandler implements ErrorHandler {
     }
 
     private void addException(boolean error, SAXParseException e) throws SAXException {
-        Message msg = new Message();
-        msg.context = null;
-        msg.test = null;
-        msg.location = e.getSystemId() + ": line: "+e.getLineNumber()+" column: "+e.getColumnNumber();
-        msg.error = error;
-        msg.text = e.getMessage();
-        msgList.add(msg);
+        msgList.add(new Message(error, e));
     }
 
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import javax.xml.validation.ValidatorHandler;
+import org.xml.sax.Attributes;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * A SAX filter that tees the events of the parser to an XSD validator, and
+ * passes them on unchanged to the next content handler, e.g., a Saxon tree
+ * builder. So a document only needs to be parsed once to be both validated
+ * and loaded.
+ */
+class ValidatingXMLFilter extends XMLFilterImpl {
+
+    /**
+     * The XSD validator
+     */
+    private final ValidatorHandler validator;
+
+    /**
+     * The handler for both parse and validation errors
+     */
+    private final ErrorHandler errors;
+
+    ValidatingXMLFilter(XMLReader parent, ValidatorHandler validator, ErrorHandler errors) {
+        super(parent);
+        this.validator = validator;
+        this.errors = errors;
+        this.validator.setErrorHandler(errors);
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        validator.setDocumentLocator(locator);
+        super.setDocumentLocator(locator);
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        validator.startDocument();
+        super.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        validator.endDocument();
+        super.endDocument();
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        validator.startPrefixMapping(prefix, uri);
+        super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        validator.endPrefixMapping(prefix);
+        super.endPrefixMapping(prefix);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        validator.startElement(uri, localName, qName, atts);
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        validator.endElement(uri, localName, qName);
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        validator.characters(ch, start, length);
+        super.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        validator.ignorableWhitespace(ch, start, length);
+        super.ignorableWhitespace(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        validator.processingInstruction(target, data);
+        super.processingInstruction(target, data);
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+        validator.skippedEntity(name);
+        super.skippedEntity(name);
+    }
+
+    @Override
+    public void warning(SAXParseException e) throws SAXException {
+        errors.warning(e);
+    }
+
+    @Override
+    public void error(SAXParseException e) throws SAXException {
+        errors.error(e);
+    }
+
+    @Override
+    public void fatalError(SAXParseException e) throws SAXException {
+        errors.fatalError(e);
+    }
+}
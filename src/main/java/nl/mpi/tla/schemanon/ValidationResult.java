@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.util.List;
+import net.sf.saxon.s9api.XdmNode;
+
+/**
+ * The result of a single validation run of a {@link SchemAnonValidator}.
+ */
+public class ValidationResult {
+
+    /**
+     * Is the document valid or not?
+     */
+    private final boolean valid;
+
+    /**
+     * The list of validation messages.
+     */
+    private final List<Message> msgList;
+
+    /**
+     * The Schematron SVRL validation report (might be null, e.g., if the validator doesn't keep it).
+     */
+    private final XdmNode report;
+
+    /**
+     * Did the validation run to completion, or did it fail, e.g., on an I/O error?
+     */
+    private final boolean complete;
+
+    ValidationResult(boolean valid, List<Message> msgList, XdmNode report) {
+        this(valid, msgList, report, true);
+    }
+
+    ValidationResult(boolean valid, List<Message> msgList, XdmNode report, boolean complete) {
+        this.valid = valid;
+        this.msgList = msgList;
+        this.report = report;
+        this.complete = complete;
+    }
+
+    /**
+     * @return is the document valid or not?
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return the list of messages of this validation run
+     */
+    public List<Message> getMessages() {
+        return msgList;
+    }
+
+    /**
+     * @return did the validation run to completion? An incomplete result, e.g., due to an I/O error, might differ in a next run, so it shouldn't be cached.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the Schematron SVRL validation report (might be null)
+     */
+    public XdmNode getReport() {
+        return report;
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A long-running HTTP validation server, which keeps the compiled schemas
+ * warm in a {@link SchemaRegistry}.
+ *
+ * POST /validate?schema=URL&amp;phase=PHASE with the document as the request
+ * body returns the validity and the messages as JSON. GET /status returns
+ * the state of the registry and the request queue, and GET /metrics the
+ * {@link Metrics} in the Prometheus text format.
+ *
+ * Connections are queued for a fixed number of HTTP threads, which read the
+ * requests and queue them for a fixed number of validation workers. When
+ * either queue is full a request is refused with a 503, without reading its
+ * body. When even the refusals can't keep up a connection is just closed. A request body is
+ * held in memory from the moment it's read until its worker is done, so at
+ * most {@link #getMaxBodies(int, int)} bodies of at most
+ * {@link #getMaxBody()} bytes each are in memory at the same time.
+ */
+public class ValidationServer {
+
+    /**
+     * The default number of requests waiting for a validation worker.
+     */
+    public static final int DEFAULT_QUEUE = 64;
+
+    /**
+     * The upper limit of the default maximum size of a request body, i.e., an input document, in bytes.
+     */
+    public static final long DEFAULT_MAX_BODY = 64L * 1024 * 1024;
+
+    /**
+     * The lower limit of the default maximum size of a request body in bytes.
+     */
+    private static final long MIN_MAX_BODY = 1024L * 1024;
+
+    private final HttpServer server;
+
+    private final ThreadPoolExecutor io;
+
+    /**
+     * The thread that answers the connections refused by the HTTP threads with a 503.
+     */
+    private final ThreadPoolExecutor refuser;
+
+    /**
+     * Set while a refused connection is answered.
+     */
+    private final ThreadLocal<Boolean> overloaded = new ThreadLocal<Boolean>();
+
+    private final ThreadPoolExecutor workers;
+
+    private final SchemaRegistry registry;
+
+    private final int maxErrors;
+
+    private volatile int maxMessages = 0;
+
+    private volatile long maxBody;
+
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Create a server on the given address.
+     *
+     * @param address The address to listen on
+     * @param registry The registry holding the compiled schemas
+     * @param threads The number of validation workers
+     * @param queue The maximum number of requests waiting for a worker
+     * @param maxErrors The maximum number of errors per document (0 means report all errors)
+     * @throws IOException 
+     */
+    public ValidationServer(InetSocketAddress address, SchemaRegistry registry, int threads, int queue, int maxErrors) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("A validation server needs at least 1 worker!");
+        if (queue < 1)
+            throw new IllegalArgumentException("The request queue of a validation server should hold at least 1 request!");
+        this.registry = registry;
+        this.maxErrors = maxErrors;
+        this.metrics.watch(registry);
+        this.maxBody = getDefaultMaxBody(threads, queue);
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), new ThreadPoolExecutor.AbortPolicy());
+        this.refuser = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), new ThreadPoolExecutor.AbortPolicy());
+        // when the refuser is also full the exception makes the HTTP server close the connection
+        this.io = new ThreadPoolExecutor(io(threads), io(threads), 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(final Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown())
+                    throw new RejectedExecutionException("The validation server has been stopped!");
+                refuser.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        overloaded.set(Boolean.TRUE);
+                        try {
+                            r.run();
+                        } finally {
+                            overloaded.remove();
+                        }
+                    }
+                });
+            }
+        });
+        this.server = HttpServer.create(address, queue);
+        this.server.setExecutor(io);
+        this.server.createContext("/validate", new ValidateHandler());
+        this.server.createContext("/status", new StatusHandler());
+        this.server.createContext("/metrics", new MetricsHandler());
+    }
+
+    /**
+     * The number of HTTP threads.
+     */
+    private static int io(int threads) {
+        return Math.max(2, threads);
+    }
+
+    /**
+     * Get the maximum number of request bodies held in memory at the same
+     * time: one per HTTP thread reading a request, per worker and per request
+     * queued for a worker.
+     *
+     * @param threads The number of validation workers
+     * @param queue The maximum number of requests waiting for a worker
+     * @return The maximum number of request bodies
+     */
+    public static int getMaxBodies(int threads, int queue) {
+        return io(threads) + threads + queue;
+    }
+
+    /**
+     * Get the default maximum size of a request body: half of the maximum
+     * heap size shared by the maximum number of request bodies, but between
+     * 1MB and {@link #DEFAULT_MAX_BODY}.
+     *
+     * @param threads The number of validation workers
+     * @param queue The maximum number of requests waiting for a worker
+     * @return The default maximum size of a request body in bytes
+     */
+    public static long getDefaultMaxBody(int threads, int queue) {
+        long share = Runtime.getRuntime().maxMemory() / 2 / getMaxBodies(threads, queue);
+        return Math.max(MIN_MAX_BODY, Math.min(DEFAULT_MAX_BODY, share));
+    }
+
+    /**
+     * Start accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests, and wait at most delay seconds for the requests in progress.
+     *
+     * @param delay The maximum number of seconds to wait
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        workers.shutdown();
+        try {
+            workers.awaitTermination(delay, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        io.shutdownNow();
+        refuser.shutdownNow();
+    }
+
+    /**
+     * Keep at most a number of messages per document in the responses, the others are only counted.
+     *
+     * @param maxMessages The maximum number of messages (0 means no limit)
+     */
+    public void setMaxMessages(int maxMessages) {
+        if (maxMessages < 0)
+            throw new IllegalArgumentException("The maximum number of messages can't be negative!");
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Refuse larger request bodies, as a body is read into memory before it's
+     * queued for a worker. The default is {@link #getDefaultMaxBody(int, int)}.
+     *
+     * @param maxBody The maximum size of a request body in bytes
+     */
+    public void setMaxBody(long maxBody) {
+        if (maxBody < 1)
+            throw new IllegalArgumentException("The maximum size of a request body should be at least 1 byte!");
+        this.maxBody = maxBody;
+    }
+
+    /**
+     * @return the maximum size of a request body in bytes
+     */
+    public long getMaxBody() {
+        return maxBody;
+    }
+
+    /**
+     * @return the metrics of the validations done by this server
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the address the server is listening on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private class ValidateHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                if (overloaded.get() != null) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    exchange.getResponseHeaders().set("Connection", "close");
+                    error(exchange, 503, "Too many connections waiting to be read!");
+                    return;
+                }
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    error(exchange, 405, "Only POST is supported!");
+                    return;
+                }
+                Map<String, String> params = query(exchange.getRequestURI().getRawQuery());
+                if (params.get("schema") == null) {
+                    error(exchange, 400, "No schema parameter specified!");
+                    return;
+                }
+                final URL schemaURL;
+                try {
+                    schemaURL = new URL(params.get("schema"));
+                } catch (MalformedURLException ex) {
+                    error(exchange, 400, "Invalid schema URL["+params.get("schema")+"]: "+ex.getMessage());
+                    return;
+                }
+                final String phase = params.get("phase");
+                long max = maxBody;
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                if (length != null) {
+                    try {
+                        if (Long.parseLong(length.trim()) > max) {
+                            // the body isn't read, so the connection can't be reused
+                            exchange.getResponseHeaders().set("Connection", "close");
+                            error(exchange, 413, "The document is larger than the maximum of "+max+" bytes!");
+                            return;
+                        }
+                    } catch (NumberFormatException ex) {
+                        error(exchange, 400, "Invalid Content-Length["+length+"]!");
+                        return;
+                    }
+                }
+                final byte[] doc;
+                try (InputStream in = exchange.getRequestBody()) {
+                    // the length might be unknown, so also bound the read itself
+                    doc = read(in, max);
+                }
+                if (doc == null) {
+                    exchange.getResponseHeaders().set("Connection", "close");
+                    error(exchange, 413, "The document is larger than the maximum of "+max+" bytes!");
+                    return;
+                }
+                // the exchange is completed by the worker
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        validate(exchange, schemaURL, phase, doc);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                error(exchange, 503, "Too many requests waiting for validation!");
+            } catch (IOException | RuntimeException ex) {
+                System.err.println("!ERR: handling request["+exchange.getRequestURI()+"]: "+ex);
+                exchange.close();
+            }
+        }
+    }
+
+    private class StatusHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!get(exchange))
+                return;
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"schemas\":").append(registry.size());
+            json.append(",\"hits\":").append(registry.getHits());
+            json.append(",\"misses\":").append(registry.getMisses());
+            json.append(",\"evictions\":").append(registry.getEvictions());
+            json.append(",\"workers\":").append(workers.getMaximumPoolSize());
+            json.append(",\"active\":").append(workers.getActiveCount());
+            json.append(",\"queued\":").append(workers.getQueue().size());
+            json.append(",\"completed\":").append(workers.getCompletedTaskCount());
+            json.append('}');
+            respond(exchange, 200, json);
+        }
+    }
+
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!get(exchange))
+                return;
+            StringWriter text = new StringWriter();
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            exchange.close();
+        }
+    }
+
+    private void validate(HttpExchange exchange, URL schemaURL, String phase, byte[] doc) {
+        try {
+            SchemAnonValidator validator = null;
+            try {
+                // the document is only available once, so parse it once
+                validator = registry.getValidator(schemaURL, phase).withSinglePass(true).withReport(false).withMaxErrors(maxErrors).withMaxMessages(maxMessages).withMetrics(metrics);
+            } catch (SchemAnonException | IOException | RuntimeException ex) {
+                error(exchange, 400, "Couldn't load schema["+schemaURL+"]: "+ex.getMessage());
+                return;
+            }
+            ValidationResult result = validator.validate(new StreamSource(new ByteArrayInputStream(doc)));
+            StringBuilder json = new StringBuilder("{");
+            Json.result(json, result.isValid(), result.getMessages());
+            json.append('}');
+            respond(exchange, 200, json);
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("!ERR: validating request["+exchange.getRequestURI()+"]: "+ex);
+            exchange.close();
+        }
+    }
+
+    /**
+     * Only allow GET requests, other methods are answered with a 405.
+     */
+    private static boolean get(HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod()))
+            return true;
+        exchange.getResponseHeaders().set("Allow", "GET");
+        error(exchange, 405, "Only GET is supported!");
+        return false;
+    }
+
+    /**
+     * Read a request body, unless it's larger than the maximum.
+     *
+     * @return The body, or null if it's too large
+     */
+    private static byte[] read(InputStream in, long max) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        long size = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            size += n;
+            if (size > max)
+                return null;
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static Map<String, String> query(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            if (param.isEmpty())
+                continue;
+            int eq = param.indexOf('=');
+            if (eq < 0)
+                params.put(URLDecoder.decode(param, "UTF-8"), "");
+            else
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static void error(HttpExchange exchange, int status, String msg) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        Json.string(json, msg);
+        json.append('}');
+        respond(exchange, status, json);
+    }
+
+    private static void respond(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] body = json.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,139 @@
+<?xml version="1.0" encoding="UTF-8"?>
+<!--
+	Stylesheet for turning the per pattern traversals of an XSLT generated by
+	iso_svrl_for_xslt2.xsl into a single traversal, which dispatches on the
+	element name to the rules of all patterns at once.
+
+	A pattern is dispatched when all its rule contexts are (unions of) plain
+	element names, e.g., "item" or "cmd:Components|cmd:Resources". Within a
+	pattern the first rule that matches an element fires, which is resolved
+	here statically per element name. Patterns with other contexts keep their
+	own traversal.
+
+	Notice that the fired rules and failed asserts of the dispatched patterns
+	are reported in document order, instead of pattern by pattern. So each
+	fired rule is preceded by a schemanon-pattern processing instruction,
+	which names its pattern like svrl:active-pattern does.
+-->
+<xsl:stylesheet version="2.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+	xmlns:axsl="http://www.w3.org/1999/XSL/TransformAlias"
+	xmlns:svrl="http://purl.oclc.org/dsdl/svrl"
+	xmlns:xs="http://www.w3.org/2001/XMLSchema"
+	xmlns:sa="http://www.mpi.nl/tla/schemanon/dispatch"
+	exclude-result-prefixes="xs sa">
+
+	<xsl:namespace-alias stylesheet-prefix="axsl" result-prefix="xsl"/>
+
+	<xsl:variable name="mode" select="'schemanon-dispatch'"/>
+
+	<!-- the template that runs the patterns -->
+	<xsl:variable name="root" select="/xsl:stylesheet/xsl:template[@match='/'][empty(@mode)]"/>
+
+	<!-- the modes of the patterns that traverse the whole document -->
+	<xsl:variable name="patterns" select="distinct-values($root//xsl:apply-templates[@select='/'][empty(ancestor::xsl:for-each)]/@mode)"/>
+
+	<!-- the modes of the patterns whose rules can be dispatched on element name -->
+	<xsl:variable name="dispatched" select="$patterns[every $rule in sa:rules(.) satisfies sa:indexable($rule/@match)]"/>
+
+	<!-- the active-pattern elements apply the default mode, which only matters when the schema has its own templates -->
+	<xsl:variable name="inert" select="empty(/xsl:stylesheet/xsl:template[empty(@mode)][@match][not(@match=('/','text()'))])"/>
+
+	<!-- the rules of a pattern, in priority order -->
+	<xsl:function name="sa:rules" as="element(xsl:template)*">
+		<xsl:param name="mode" as="xs:string"/>
+		<xsl:perform-sort select="$root/../xsl:template[@mode=$mode][@match][number(@priority) ge 1000]">
+			<xsl:sort select="number(@priority)" order="descending"/>
+		</xsl:perform-sort>
+	</xsl:function>
+
+	<xsl:function name="sa:indexable" as="xs:boolean">
+		<xsl:param name="context" as="xs:string"/>
+		<xsl:sequence select="every $name in tokenize($context,'\|') satisfies matches($name,'^\s*([\i-[:]][\c-[:]]*:)?[\i-[:]][\c-[:]]*\s*$')"/>
+	</xsl:function>
+
+	<!-- the expanded names a rule matches -->
+	<xsl:function name="sa:names" as="xs:string*">
+		<xsl:param name="rule" as="element(xsl:template)"/>
+		<xsl:for-each select="tokenize($rule/@match,'\|')">
+			<xsl:variable name="name" select="normalize-space(.)"/>
+			<xsl:variable name="ns" select="if (contains($name,':')) then namespace-uri-for-prefix(substring-before($name,':'),$rule) else string(($rule/ancestor-or-self::*/@xpath-default-namespace)[last()])"/>
+			<xsl:sequence select="concat('Q{',$ns,'}',if (contains($name,':')) then substring-after($name,':') else $name)"/>
+		</xsl:for-each>
+	</xsl:function>
+
+	<!-- the id, name or position of a pattern, as its svrl:active-pattern reports it -->
+	<xsl:function name="sa:pattern" as="xs:string">
+		<xsl:param name="mode" as="xs:string"/>
+		<xsl:variable name="apply" select="($root//xsl:apply-templates[@select='/'][@mode=$mode][empty(ancestor::xsl:for-each)])[1]"/>
+		<xsl:variable name="active" select="$apply/preceding::svrl:active-pattern[1]"/>
+		<xsl:variable name="label" select="($active/@id,$active/xsl:attribute[@name='id'],$active/@name,$active/xsl:attribute[@name='name'])[normalize-space(.)!=''][1]"/>
+		<xsl:sequence select="if (exists($label)) then normalize-space($label) else concat('#',count($active/preceding::svrl:active-pattern[ancestor::xsl:template is $root]) + 1)"/>
+	</xsl:function>
+
+	<xsl:function name="sa:template" as="xs:string">
+		<xsl:param name="rule" as="element(xsl:template)"/>
+		<xsl:sequence select="concat('schemanon-rule-',generate-id($rule))"/>
+	</xsl:function>
+
+	<xsl:template match="node()|@*">
+		<xsl:copy>
+			<xsl:apply-templates select="@*|node()"/>
+		</xsl:copy>
+	</xsl:template>
+
+	<xsl:template match="/xsl:stylesheet">
+		<xsl:copy>
+			<xsl:apply-templates select="@*|node()"/>
+			<xsl:if test="exists($dispatched)">
+				<xsl:call-template name="dispatch"/>
+			</xsl:if>
+		</xsl:copy>
+	</xsl:template>
+
+	<!-- the dispatched patterns share one traversal, which starts after the last of them -->
+	<xsl:template match="xsl:apply-templates[@select='/'][@mode=$dispatched][empty(ancestor::xsl:for-each)][ancestor::xsl:template is $root]">
+		<xsl:if test=". is ($root//xsl:apply-templates[@select='/'][@mode=$dispatched][empty(ancestor::xsl:for-each)])[last()]">
+			<axsl:apply-templates select="/" mode="{$mode}"/>
+		</xsl:if>
+	</xsl:template>
+
+	<xsl:template match="svrl:active-pattern/xsl:apply-templates[empty(@*)][$inert][ancestor::xsl:template is $root]"/>
+
+	<xsl:template name="dispatch">
+		<xsl:variable name="rules" select="for $pattern in $dispatched return sa:rules($pattern)"/>
+		<!-- the rules as named templates, without the recursion into their own mode -->
+		<xsl:for-each select="$rules">
+			<axsl:template name="{sa:template(.)}">
+				<xsl:copy-of select="namespace::*"/>
+				<axsl:processing-instruction name="schemanon-pattern">
+					<xsl:value-of select="sa:pattern(@mode)"/>
+				</axsl:processing-instruction>
+				<xsl:apply-templates select="node() except xsl:apply-templates[@mode=current()/@mode]"/>
+			</axsl:template>
+		</xsl:for-each>
+		<axsl:template match="/" mode="{$mode}">
+			<axsl:apply-templates select="*" mode="{$mode}"/>
+		</axsl:template>
+		<axsl:template match="*" mode="{$mode}" priority="0">
+			<axsl:apply-templates select="*" mode="{$mode}"/>
+		</axsl:template>
+		<!-- per element name, the first matching rule of each pattern -->
+		<xsl:for-each-group select="for $rule in $rules return for $name in sa:names($rule) return $name" group-by=".">
+			<xsl:variable name="name" select="current-grouping-key()"/>
+			<xsl:variable name="first" select="($rules[sa:names(.)=$name])[1]"/>
+			<xsl:variable name="tokens" select="for $token in tokenize($first/@match,'\|') return normalize-space($token)"/>
+			<axsl:template mode="{$mode}" priority="1">
+				<xsl:copy-of select="$first/namespace::*"/>
+				<xsl:attribute name="match" select="$tokens[index-of(sa:names($first),$name)[1]]"/>
+				<xsl:for-each select="$dispatched">
+					<xsl:variable name="rule" select="sa:rules(.)[sa:names(.)=$name][1]"/>
+					<xsl:if test="exists($rule)">
+						<axsl:call-template name="{sa:template($rule)}"/>
+					</xsl:if>
+				</xsl:for-each>
+				<axsl:apply-templates select="*" mode="{$mode}"/>
+			</axsl:template>
+		</xsl:for-each-group>
+	</xsl:template>
+
+</xsl:stylesheet>
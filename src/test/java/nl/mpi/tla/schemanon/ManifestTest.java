@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ManifestTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private SchemAnonValidator validator;
+
+    @Before
+    public void setUp() throws Exception {
+        File sch = new File(tmp.getRoot(), "rules.sch");
+        Files.write(sch.toPath(), SchemAnonValidatorTest.SCH.getBytes(StandardCharsets.UTF_8));
+        validator = new SchemAnon(sch.toURI().toURL()).getValidator();
+    }
+
+    private ValidationResult result(String systemId) {
+        List<Message> msgs = new ArrayList<Message>();
+        msgs.add(new Message(true, systemId, 2, 5, "not well-formed"));
+        return new ValidationResult(false, msgs, null);
+    }
+
+    private Manifest manifest(File dir, SchemAnonValidator validator) {
+        Manifest manifest = new Manifest(new File(dir, Manifest.NAME), validator, "schema");
+        manifest.load();
+        return manifest;
+    }
+
+    @Test
+    public void keepsUnchangedInputs() throws Exception {
+        File dir = tmp.newFolder("docs");
+        Manifest manifest = manifest(dir, validator);
+        assertNull(manifest.get("a.xml", 10, 1000));
+        manifest.put("a.xml", 10, 1000, result(new File(dir, "a.xml").toURI().toASCIIString()));
+        manifest.save();
+
+        manifest = manifest(dir, validator);
+        ValidationResult res = manifest.get("a.xml", 10, 1000);
+        assertNotNull(res);
+        assertFalse(res.isValid());
+        assertEquals("not well-formed", res.getMessages().get(0).getText());
+    }
+
+    @Test
+    public void detectsChangedInputs() throws Exception {
+        File dir = tmp.newFolder("docs");
+        Manifest manifest = manifest(dir, validator);
+        manifest.put("a.xml", 10, 1000, result(null));
+        manifest.save();
+
+        manifest = manifest(dir, validator);
+        assertNull(manifest.get("a.xml", 11, 1000));
+        assertNull(manifest.get("a.xml", 10, 1001));
+        assertNull(manifest.get("b.xml", 10, 1000));
+    }
+
+    @Test
+    public void dropsInputsNoLongerSeen() throws Exception {
+        File dir = tmp.newFolder("docs");
+        Manifest manifest = manifest(dir, validator);
+        manifest.put("a.xml", 10, 1000, result(null));
+        manifest.put("b.xml", 10, 1000, result(null));
+        manifest.save();
+
+        manifest = manifest(dir, validator);
+        assertNotNull(manifest.get("a.xml", 10, 1000));
+        manifest.save();
+
+        manifest = manifest(dir, validator);
+        assertNotNull(manifest.get("a.xml", 10, 1000));
+        assertNull(manifest.get("b.xml", 10, 1000));
+    }
+
+    @Test
+    public void ignoresOtherValidators() throws Exception {
+        File dir = tmp.newFolder("docs");
+        Manifest manifest = manifest(dir, validator);
+        manifest.put("a.xml", 10, 1000, result(null));
+        manifest.save();
+
+        assertNull(manifest(dir, validator.withMaxErrors(1)).get("a.xml", 10, 1000));
+        assertNull(new Manifest(new File(dir, Manifest.NAME), validator, "other").get("a.xml", 10, 1000));
+    }
+
+    @Test
+    public void ignoresInvalidManifests() throws Exception {
+        File dir = tmp.newFolder("docs");
+        Files.write(new File(dir, Manifest.NAME).toPath(), "garbage".getBytes(StandardCharsets.UTF_8));
+        assertNull(manifest(dir, validator).get("a.xml", 10, 1000));
+    }
+
+    @Test
+    public void positionsFollowTheDirectory() throws Exception {
+        File dir = tmp.newFolder("docs");
+        Manifest manifest = manifest(dir, validator);
+        manifest.put("a.xml", 10, 1000, result(new File(dir, "a.xml").toURI().toASCIIString()));
+        manifest.save();
+
+        File moved = new File(tmp.getRoot(), "moved");
+        assertTrue(dir.renameTo(moved));
+        Message msg = manifest(moved, validator).get("a.xml", 10, 1000).getMessages().get(0);
+        assertEquals(new File(moved, "a.xml").toURI().toASCIIString(), msg.getSystemId());
+        assertEquals(2, msg.getLine());
+    }
+}
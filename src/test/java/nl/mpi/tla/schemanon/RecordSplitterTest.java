@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class RecordSplitterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(tmp.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private SchemAnonValidator validator(String rules) throws Exception {
+        File sch = write("rules.sch", "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><ns prefix='x' uri='urn:x'/><pattern>" + rules + "</pattern></schema>");
+        return new SchemAnon(sch.toURI().toURL()).getValidator();
+    }
+
+    private static List<String> locations(ValidationResult result) {
+        List<String> locations = new ArrayList<String>();
+        for (Message msg : result.getMessages())
+            locations.add(msg.getLocation());
+        // the rest of the document is checked after the records
+        Collections.sort(locations);
+        return locations;
+    }
+
+    @Test
+    public void findsContentAccess() {
+        for (String xp : new String[] {"count(item) ge 1", ".", "string()", "normalize-space()", "child::x", "text()", "//x", "x:item", "*", "name(.)"})
+            assertTrue(xp, RecordSplitter.reachesContent(xp));
+        for (String xp : new String[] {"@id", "@id = 'a/b'", "string-length(@name) > 2", "normalize-space(@x)", "@a * 2", "@* and @b", "self::item", "$x instance of xs:integer", "for $i in 1 to 3 return $i", "if (@a) then 1 else 2", "exists(@a)", "local-name()", "@a div 2", "count(@*) eq 3"})
+            assertFalse(xp, RecordSplitter.reachesContent(xp));
+    }
+
+    @Test
+    public void findsPositionalPatterns() {
+        for (String match : new String[] {"item[1]", "item[last()]", "item[position()=2]", "item[position() lt 3]", "item[$n]", "item[count(../x)]", "item[@n + 1]", "item[number(@n)]", "item[x][2]"})
+            assertTrue(match, RecordSplitter.isPositional(match));
+        for (String match : new String[] {"item", "item[@id]", "item[@id='1']", "item[@n = 1]", "item[@a and @b]", "item[name]", "item[contains(@a,'1')]", "x:item[@n eq 2]"})
+            assertFalse(match, RecordSplitter.isPositional(match));
+    }
+
+    @Test
+    public void streamsRulesOnTheRecords() throws Exception {
+        SchemAnonValidator validator = validator("<rule context='item'><assert test='count(name) eq 1'>one name</assert></rule><rule context='list'><assert test='@version'>version</assert></rule>");
+        assertTrue(validator.isStreamable());
+        assertTrue(validator.withRecords("item").isStreamable());
+        assertFalse(validator.withRecords("list").isStreamable());
+    }
+
+    @Test
+    public void refusesRulesLookingIntoTheRecords() throws Exception {
+        SchemAnonValidator validator = validator("<rule context='list'><assert test='count(item) ge 1'>list needs items</assert></rule>").withRecords("item");
+        assertFalse(validator.isStreamable());
+        ValidationResult result = validator.validate(write("doc.xml", "<list><item id='1'/><item id='2'/></list>"));
+        assertTrue(result.isValid());
+    }
+
+    @Test
+    public void refusesPositionalContexts() throws Exception {
+        SchemAnonValidator validator = validator("<rule context='item[1]'><assert test='false()'>first item</assert></rule>");
+        assertFalse(validator.withRecords("item").isStreamable());
+        File doc = write("doc.xml", "<list><item/><item/><item/></list>");
+        assertEquals(locations(validator.validate(doc)), locations(validator.withRecords("item").validate(doc)));
+        assertEquals(1, validator.withRecords("item").validate(doc).getMessages().size());
+    }
+
+    @Test
+    public void resolvesNamespaces() throws Exception {
+        SchemAnonValidator validator = validator("<rule context='x:item'><assert test='x:name'>name</assert></rule>");
+        assertTrue(validator.withRecords("{urn:x}item").isStreamable());
+        assertFalse(validator.withRecords("item").isStreamable());
+    }
+
+    @Test
+    public void validatesRecordByRecord() throws Exception {
+        SchemAnonValidator validator = validator("<rule context='item'><assert test='string-length(@name) gt 2'>name too short</assert></rule><rule context='list'><assert test='@version'>version</assert></rule>");
+        File doc = write("doc.xml", "<list><item name='abc'/><item name='a'/><group><item name='b'/></group></list>");
+        ValidationResult whole = validator.validate(doc);
+        ValidationResult records = validator.withRecords("item").validate(doc);
+        assertFalse(records.isValid());
+        assertEquals(locations(whole), locations(records));
+    }
+
+    @Test
+    public void parsesTheInputOnce() throws Exception {
+        File xsd = write("rules.xsd", "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:sch='http://purl.oclc.org/dsdl/schematron'><xs:annotation><xs:appinfo><sch:pattern><sch:rule context='item'><sch:assert test='string-length(@name) gt 2'>name too short</sch:assert></sch:rule></sch:pattern></xs:appinfo></xs:annotation><xs:element name='list'><xs:complexType><xs:sequence><xs:element name='item' maxOccurs='unbounded'><xs:complexType><xs:attribute name='name' use='required'/></xs:complexType></xs:element></xs:sequence></xs:complexType></xs:element></xs:schema>");
+        SchemAnonValidator validator = new SchemAnon(xsd.toURI().toURL()).getValidator().withRecords("item");
+        // a reader can only be read once
+        ValidationResult rules = validator.validate(new StreamSource(new StringReader("<list><item name='abc'/><item name='a'/></list>")));
+        assertFalse(rules.isValid());
+        assertEquals(Collections.singletonList("/list[1]/item[2]"), locations(rules));
+        ValidationResult grammar = validator.validate(new StreamSource(new StringReader("<list><item/></list>")));
+        assertFalse(grammar.isValid());
+        assertEquals(1, grammar.getMessages().size());
+        assertTrue(grammar.getMessages().get(0).getText().startsWith("cvc-"));
+        assertTrue(validator.validate(new StreamSource(new StringReader("<list><item name='abc'/></list>"))).isValid());
+    }
+}
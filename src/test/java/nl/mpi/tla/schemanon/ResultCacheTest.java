@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private SchemAnonValidator validator;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        File sch = new File(tmp.getRoot(), "rules.sch");
+        Files.write(sch.toPath(), SchemAnonValidatorTest.SCH.getBytes(StandardCharsets.UTF_8));
+        validator = new SchemAnon(sch.toURI().toURL()).getValidator();
+        dir = tmp.newFolder("results");
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(tmp.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private ValidationResult result() {
+        List<Message> msgs = new ArrayList<Message>();
+        msgs.add(new Message(true, "item", "string-length(@name) gt 2", "/list[1]/item[1]", "name too short"));
+        msgs.add(new Message(false, "file:/a/doc.xml", 3, 7, "not well-formed"));
+        return new ValidationResult(false, msgs, null);
+    }
+
+    @Test
+    public void storesResults() throws Exception {
+        ResultCache cache = new ResultCache(dir, validator, "schema");
+        String hash = ResultCache.hash(write("doc.xml", "<list/>"));
+        assertNull(cache.get(hash, "file:/a/doc.xml"));
+        cache.put(hash, "file:/a/doc.xml", result());
+        ValidationResult res = cache.get(hash, "file:/a/doc.xml");
+        assertNotNull(res);
+        assertFalse(res.isValid());
+        assertTrue(res.isComplete());
+        assertEquals(2, res.getMessages().size());
+        assertEquals(1, MessageList.errors(res.getMessages()));
+        assertEquals("/list[1]/item[1]", res.getMessages().get(0).getLocation());
+        assertEquals("name too short", res.getMessages().get(0).getText());
+    }
+
+    @Test
+    public void positionsFollowTheInput() throws Exception {
+        ResultCache cache = new ResultCache(dir, validator, "schema");
+        String hash = ResultCache.hash(write("doc.xml", "<list/>"));
+        cache.put(hash, "file:/a/doc.xml", result());
+        Message msg = cache.get(hash, "file:/b/copy.xml").getMessages().get(1);
+        assertEquals("file:/b/copy.xml", msg.getSystemId());
+        assertEquals(3, msg.getLine());
+        assertEquals(7, msg.getColumn());
+    }
+
+    @Test
+    public void changedInputsMiss() throws Exception {
+        ResultCache cache = new ResultCache(dir, validator, "schema");
+        File doc = write("doc.xml", "<list/>");
+        cache.put(ResultCache.hash(doc), "file:/a/doc.xml", result());
+        write("doc.xml", "<list><item name='abc'/></list>");
+        assertNull(cache.get(ResultCache.hash(doc), "file:/a/doc.xml"));
+    }
+
+    @Test
+    public void otherSettingsMiss() throws Exception {
+        String hash = ResultCache.hash(write("doc.xml", "<list/>"));
+        new ResultCache(dir, validator, "schema").put(hash, "file:/a/doc.xml", result());
+        assertNull(new ResultCache(dir, validator, "other").get(hash, "file:/a/doc.xml"));
+        assertNull(new ResultCache(dir, validator.withMaxErrors(1), "schema").get(hash, "file:/a/doc.xml"));
+        assertNull(new ResultCache(dir, validator.withMaxMessages(1), "schema").get(hash, "file:/a/doc.xml"));
+        assertNull(new ResultCache(dir, validator.withRecords("item"), "schema").get(hash, "file:/a/doc.xml"));
+        assertNotNull(new ResultCache(dir, validator.withSinglePass(true), "schema").get(hash, "file:/a/doc.xml"));
+    }
+
+    @Test
+    public void failedValidationsAreIncomplete() throws Exception {
+        ValidationResult res = validator.validate(new File(tmp.getRoot(), "missing.xml"));
+        assertFalse(res.isValid());
+        assertFalse(res.isComplete());
+    }
+}
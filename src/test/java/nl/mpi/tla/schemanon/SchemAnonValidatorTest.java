@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SchemAnonValidatorTest {
+
+    static final String SCH = "<schema xmlns='http://purl.oclc.org/dsdl/schematron' queryBinding='xslt2'><pattern><rule context='item'><assert test='string-length(@name) gt 2'>name too short</assert></rule></pattern></schema>";
+
+    static final String XSD = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:element name='list'><xs:complexType><xs:sequence><xs:element name='item' maxOccurs='unbounded'><xs:complexType><xs:attribute name='name' type='xs:NCName' use='required'/></xs:complexType></xs:element></xs:sequence></xs:complexType></xs:element></xs:schema>";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    File write(String name, String content) throws IOException {
+        File file = new File(tmp.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    SchemAnonValidator validator(String name, String schema) throws Exception {
+        return new SchemAnon(write(name, schema).toURI().toURL()).getValidator();
+    }
+
+    @Test
+    public void reportsAllErrors() throws Exception {
+        ValidationResult result = validator("rules.sch", SCH).validate(write("doc.xml", "<list><item name='a'/><item name='b'/><item name='c'/></list>"));
+        assertFalse(result.isValid());
+        assertTrue(result.isComplete());
+        assertEquals(3, MessageList.errors(result.getMessages()));
+    }
+
+    @Test
+    public void stopsSchematronAtMaxErrors() throws Exception {
+        SchemAnonValidator validator = validator("rules.sch", SCH).withMaxErrors(1);
+        ValidationResult result = validator.validate(write("doc.xml", "<list><item name='a'/><item name='b'/><item name='c'/></list>"));
+        assertFalse(result.isValid());
+        assertEquals(1, MessageList.errors(result.getMessages()));
+        assertTrue(validator.validate(write("ok.xml", "<list><item name='abc'/></list>")).isValid());
+    }
+
+    @Test
+    public void stopsXSDAtMaxErrors() throws Exception {
+        File doc = write("doc.xml", "<list><item/><item/><item/></list>");
+        SchemAnonValidator validator = validator("list.xsd", XSD);
+        assertEquals(3, MessageList.errors(validator.validate(doc).getMessages()));
+        assertEquals(1, MessageList.errors(validator.withMaxErrors(1).validate(doc).getMessages()));
+        assertEquals(2, MessageList.errors(validator.withMaxErrors(2).withSinglePass(true).validate(doc).getMessages()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNegativeMaxErrors() throws Exception {
+        validator("rules.sch", SCH).withMaxErrors(-1);
+    }
+}
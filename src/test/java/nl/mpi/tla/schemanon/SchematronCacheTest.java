@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.s9api.XdmNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class SchematronCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(tmp.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private XdmNode load(File file) throws Exception {
+        return SaxonUtils.buildDocument(new StreamSource(file));
+    }
+
+    @Test
+    public void keyDependsOnHashAndPhase() throws Exception {
+        String key = SchematronCache.key("abc", null);
+        assertEquals(key, SchematronCache.key("abc", null));
+        assertNotEquals(key, SchematronCache.key("abd", null));
+        assertNotEquals(key, SchematronCache.key("abc", "p1"));
+        assertNotEquals(SchematronCache.key("abc", "p1"), SchematronCache.key("abc", "p2"));
+    }
+
+    @Test
+    public void versionIsStable() {
+        String version = SchematronCache.getVersion();
+        assertNotNull(version);
+        assertFalse(version.equals("dev"));
+        assertEquals(version, SchematronCache.getVersion());
+    }
+
+    @Test
+    public void hashFollowsIncludes() throws Exception {
+        File inc = write("inc.xsd", "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:element name='a'/></xs:schema>");
+        File main = write("main.xsd", "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:include schemaLocation='inc.xsd'/></xs:schema>");
+        String hash = SchematronCache.hash(load(main));
+        assertEquals(hash, SchematronCache.hash(load(main)));
+        write("inc.xsd", "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:element name='b'/></xs:schema>");
+        assertNotEquals(hash, SchematronCache.hash(load(main)));
+        assertTrue(inc.delete());
+    }
+
+    @Test
+    public void entriesArePerPhase() throws Exception {
+        SchematronCache cache = new SchematronCache(tmp.newFolder("cache"));
+        XdmNode xsl = load(write("rules.xsl", "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'/>"));
+        String key = SchematronCache.key("abc", "p1");
+        assertNull(cache.get(key, "p1"));
+        cache.put(key, "file:/rules.sch", "p1", xsl);
+        assertNotNull(cache.get(key, "p1"));
+        assertNull(cache.get(key, "p2"));
+        assertNull(cache.get(key, null));
+        assertFalse(cache.isEmpty(key, "p1"));
+    }
+
+    @Test
+    public void emptyEntries() throws Exception {
+        SchematronCache cache = new SchematronCache(tmp.newFolder("cache"));
+        String key = SchematronCache.key("abc", null);
+        assertFalse(cache.isEmpty(key, null));
+        cache.putEmpty(key, "file:/plain.xsd", null);
+        assertTrue(cache.isEmpty(key, null));
+        assertNull(cache.get(key, null));
+        assertFalse(cache.isEmpty(key, "p1"));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 - 2017 The Language Archive - Max Planck Institute for Psycholinguistics, Meertens Institute
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.tla.schemanon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class ValidationServerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ValidationServer server;
+
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    private ValidationServer start(int threads, int queue) throws IOException {
+        server = new ValidationServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new SchemaRegistry(4, 0), threads, queue, 0);
+        server.start();
+        return server;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets)
+            socket.close();
+        if (server != null)
+            server.stop(0);
+    }
+
+    private String schema() throws IOException {
+        File sch = new File(tmp.getRoot(), "rules.sch");
+        Files.write(sch.toPath(), SchemAnonValidatorTest.SCH.getBytes(StandardCharsets.UTF_8));
+        return URLEncoder.encode(sch.toURI().toString(), "UTF-8");
+    }
+
+    private URL url(String path) throws IOException {
+        return new URL("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+    }
+
+    private HttpURLConnection request(String method, String path, String body, boolean chunked) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)url(path).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            conn.setDoOutput(true);
+            if (chunked)
+                conn.setChunkedStreamingMode(16);
+            else
+                conn.setFixedLengthStreamingMode(bytes.length);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(bytes);
+            } catch (IOException ex) {
+                // the server might refuse the request before the whole body is sent
+            }
+        }
+        return conn;
+    }
+
+    private static String body(HttpURLConnection conn) throws IOException {
+        InputStream in = (conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            body.write(buffer, 0, n);
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * Read the whole response, so the server is done with it, and return its status.
+     */
+    private static int code(HttpURLConnection conn) throws IOException {
+        body(conn);
+        return conn.getResponseCode();
+    }
+
+    @Test
+    public void validates() throws Exception {
+        start(1, 4);
+        HttpURLConnection conn = request("POST", "/validate?schema=" + schema(), "<list><item name='abc'/></list>", false);
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(body(conn).contains("\"valid\":true"));
+        conn = request("POST", "/validate?schema=" + schema(), "<list><item name='a'/></list>", false);
+        assertEquals(200, conn.getResponseCode());
+        String json = body(conn);
+        assertTrue(json.contains("\"valid\":false"));
+        assertTrue(json.contains("name too short"));
+    }
+
+    @Test
+    public void refusesBadRequests() throws Exception {
+        start(1, 4);
+        assertEquals(400, code(request("POST", "/validate", "<list/>", false)));
+        assertEquals(400, code(request("POST", "/validate?schema=nope", "<list/>", false)));
+        HttpURLConnection conn = request("GET", "/validate?schema=" + schema(), null, false);
+        assertEquals(405, code(conn));
+        assertEquals("POST", conn.getHeaderField("Allow"));
+    }
+
+    @Test
+    public void answersStatusAndMetrics() throws Exception {
+        start(1, 4);
+        HttpURLConnection conn = request("GET", "/status", null, false);
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(body(conn).contains("\"workers\":1"));
+        assertEquals(200, code(request("GET", "/metrics", null, false)));
+        conn = request("POST", "/status", "x", false);
+        assertEquals(405, code(conn));
+        assertEquals("GET", conn.getHeaderField("Allow"));
+        assertEquals(405, code(request("POST", "/metrics", "x", false)));
+    }
+
+    @Test
+    public void refusesLargeBodies() throws Exception {
+        start(1, 4);
+        server.setMaxBody(16);
+        String doc = "<list><item name='abc'/></list>";
+        HttpURLConnection large = request("POST", "/validate?schema=" + schema(), doc, false);
+        assertEquals(413, code(large));
+        assertEquals("close", large.getHeaderField("Connection"));
+        assertEquals(413, code(request("POST", "/validate?schema=" + schema(), doc, true)));
+        HttpURLConnection conn = request("POST", "/validate?schema=" + schema(), "<list/>", false);
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(body(conn).contains("\"valid\":true"));
+    }
+
+    @Test
+    public void boundsTheMemory() {
+        assertEquals(2 + 1 + 64, ValidationServer.getMaxBodies(1, 64));
+        assertEquals(8 + 8 + 16, ValidationServer.getMaxBodies(8, 16));
+        long max = ValidationServer.getDefaultMaxBody(1, 64);
+        assertTrue(max >= 1024L * 1024 && max <= ValidationServer.DEFAULT_MAX_BODY);
+        if (max > 1024L * 1024)
+            assertTrue(max * ValidationServer.getMaxBodies(1, 64) <= Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    @Test
+    public void refusesConnectionsBeyondTheQueue() throws Exception {
+        start(1, 1);
+        // occupy both HTTP threads, and the one place in their queue, with requests that never finish their request line
+        for (int i = 0; i < 3; i++) {
+            Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort());
+            sockets.add(socket);
+            socket.getOutputStream().write("POST /valid".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            Thread.sleep(200);
+        }
+        HttpURLConnection conn = request("POST", "/validate?schema=" + schema(), "<list/>", false);
+        assertEquals(503, code(conn));
+        assertEquals("1", conn.getHeaderField("Retry-After"));
+    }
+}